@@ -1,5 +1,10 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 // ----------------------------
 // Discount Strategy (Strategy Pattern)
@@ -126,6 +131,10 @@ class CartItem {
     public Product getProduct() {
         return product;
     }
+
+    public int getQuantity() {
+        return quantity;
+    }
 }
 
 class Cart {
@@ -134,10 +143,13 @@ class Cart {
     private double currentTotal  = 0.0;
     private boolean loyaltyMember;
     private String paymentBank;
+    private String userId;
+    private List<CouponRedemption> redemptions = new ArrayList<>();    // held until payment
 
     public Cart() {
         this.loyaltyMember = false;
         this.paymentBank   = "";
+        this.userId        = "";
     }
 
     public void addProduct(Product prod, int qty) {
@@ -178,9 +190,395 @@ class Cart {
         return paymentBank;
     }
 
+    public void setUserId(String user) {
+        this.userId = user;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
     public List<CartItem> getItems() {
         return items;
     }
+
+    public void addRedemption(CouponRedemption redemption) {
+        redemptions.add(redemption);
+    }
+
+    // Hands the held redemptions to the caller and forgets them
+    public List<CouponRedemption> takeRedemptions() {
+        List<CouponRedemption> res = redemptions;
+        redemptions = new ArrayList<>();
+        return res;
+    }
+
+    // Back to the original total; the caller gets the holds behind the old discounts
+    public List<CouponRedemption> resetDiscounts() {
+        currentTotal = originalTotal;
+        return takeRedemptions();
+    }
+}
+
+// ----------------------------
+// CartAggregates (computed once per evaluation)
+// ----------------------------
+// Everything the coupons look at, gathered in one pass over the cart so
+// that no coupon has to walk the items again.
+class CartAggregates {
+    private double originalTotal;
+    private int itemCount;
+    private Map<String, Double> categoryTotals = new HashMap<>();
+    private boolean loyaltyMember;
+    private String paymentBank;
+    private String userId;
+
+    public static CartAggregates of(Cart cart) {
+        return new CartAggregates().fill(cart);
+    }
+
+    // Overwrites this instance with the cart's numbers, so scratch copies can be reused
+    public CartAggregates fill(Cart cart) {
+        originalTotal = 0.0;
+        itemCount     = 0;
+        categoryTotals.clear();
+        for (CartItem item : cart.getItems()) {
+            originalTotal += item.itemTotal();
+            itemCount     += item.getQuantity();
+            categoryTotals.merge(item.getProduct().getCategory(), item.itemTotal(), Double::sum);
+        }
+        loyaltyMember = cart.isLoyaltyMember();
+        paymentBank   = cart.getPaymentBank();
+        userId        = cart.getUserId();
+        return this;
+    }
+
+    public double getOriginalTotal() {
+        return originalTotal;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    public boolean hasCategory(String category) {
+        return categoryTotals.containsKey(category);
+    }
+
+    public double getCategoryTotal(String category) {
+        return categoryTotals.getOrDefault(category, 0.0);
+    }
+
+    public Set<String> getCategories() {
+        return categoryTotals.keySet();
+    }
+
+    public boolean isLoyaltyMember() {
+        return loyaltyMember;
+    }
+
+    public String getPaymentBank() {
+        return paymentBank;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+}
+
+// What a coupon can be looked up by in CouponRuleEngine
+enum RuleIndex {
+    CATEGORY,
+    BANK,
+    LOYALTY,
+    ANY
+}
+
+// ----------------------------
+// Coupon usage limits
+// ----------------------------
+// A fixed budget of redemptions split across padded stripes. A thread takes
+// from its own stripe and only moves on to the others once that one is empty,
+// so a hot coupon is not one contended counter, and a unit lives in exactly
+// one stripe so the budget can never be oversold.
+class StripedQuota {
+    private static final int STRIDE = 16;      // 16 longs apart = separate cache lines
+
+    private final AtomicLongArray cells;
+    private final int stripes;
+
+    public StripedQuota(long limit, int stripeCount) {
+        this.stripes = Integer.highestOneBit(Math.max(1, stripeCount));
+        this.cells   = new AtomicLongArray(stripes * STRIDE);
+        for (int i = 0; i < stripes; i++) {
+            cells.set(i * STRIDE, limit / stripes + (i < limit % stripes ? 1 : 0));
+        }
+    }
+
+    private int home() {
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (stripes - 1);
+    }
+
+    public boolean tryAcquire() {
+        int start = home();
+        for (int n = 0; n < stripes; n++) {
+            int cell = ((start + n) & (stripes - 1)) * STRIDE;
+            long left = cells.get(cell);
+            while (left > 0) {
+                if (cells.compareAndSet(cell, left, left - 1)) {
+                    return true;
+                }
+                left = cells.get(cell);
+            }
+        }
+        return false;
+    }
+
+    public void release() {
+        cells.incrementAndGet(home() * STRIDE);
+    }
+
+    public long available() {
+        long sum = 0;
+        for (int i = 0; i < stripes; i++) {
+            sum += cells.get(i * STRIDE);
+        }
+        return sum;
+    }
+
+    // Takes units out for good, e.g. redemptions already used before a restart
+    public void consume(long units) {
+        for (int i = 0; i < stripes && units > 0; i++) {
+            long left = cells.get(i * STRIDE);
+            long take = Math.min(left, units);
+            if (take > 0 && cells.compareAndSet(i * STRIDE, left, left - take)) {
+                units -= take;
+            } else if (take > 0) {
+                i--;        // lost a race, retry the same stripe
+            }
+        }
+    }
+}
+
+// Global and per-user caps of one coupon. A redemption is reserved when the
+// coupon is applied to a cart and either confirmed once payment goes through
+// or released if checkout is abandoned.
+class CouponUsage {
+    private final StripedQuota global;                                 // null = no global cap
+    private final int perUserLimit;
+    private final Map<String, AtomicInteger> perUser = new ConcurrentHashMap<>();
+    private final LongAdder confirmed = new LongAdder();
+    private final Map<String, AtomicInteger> confirmedByUser = new ConcurrentHashMap<>();
+    private final Set<String> unlogged = ConcurrentHashMap.newKeySet();    // confirmed since the usage log last looked
+
+    public CouponUsage(long globalLimit, int perUserLimit) {
+        this.global = globalLimit == Long.MAX_VALUE ? null
+                    : new StripedQuota(globalLimit, Runtime.getRuntime().availableProcessors() * 2);
+        this.perUserLimit = perUserLimit;
+    }
+
+    public static CouponUsage unlimited() {
+        return new CouponUsage(Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    public boolean tryReserve(String userId) {
+        AtomicInteger used = null;
+        if (perUserLimit != Integer.MAX_VALUE) {
+            used = perUser.computeIfAbsent(userId, k -> new AtomicInteger());
+            if (used.incrementAndGet() > perUserLimit) {
+                used.decrementAndGet();
+                return false;
+            }
+        }
+        if (global != null && !global.tryAcquire()) {
+            if (used != null) {
+                used.decrementAndGet();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    public void release(String userId) {
+        if (global != null) {
+            global.release();
+        }
+        if (perUserLimit != Integer.MAX_VALUE) {
+            perUser.get(userId).decrementAndGet();
+        }
+    }
+
+    public void confirm(String userId) {
+        confirmed.increment();
+        confirmedByUser.computeIfAbsent(userId, k -> new AtomicInteger()).incrementAndGet();
+        unlogged.add(userId);
+    }
+
+    // A peek for listing and planning; tryReserve is what actually decides
+    public boolean hasQuota(String userId) {
+        if (global != null && global.available() <= 0) {
+            return false;
+        }
+        if (perUserLimit == Integer.MAX_VALUE) {
+            return true;
+        }
+        AtomicInteger used = perUser.get(userId);
+        return used == null || used.get() < perUserLimit;
+    }
+
+    public long getConfirmed() {
+        return confirmed.sum();
+    }
+
+    public int getConfirmed(String userId) {
+        AtomicInteger count = confirmedByUser.get(userId);
+        return count == null ? 0 : count.get();
+    }
+
+    // Users who confirmed since the last call; a user confirming meanwhile
+    // is added back and shows up in the next one
+    public List<String> takeUnlogged() {
+        List<String> users = new ArrayList<>();
+        for (String userId : unlogged) {
+            if (unlogged.remove(userId)) {
+                users.add(userId);
+            }
+        }
+        return users;
+    }
+
+    public void markUnlogged(Collection<String> userIds) {
+        unlogged.addAll(userIds);
+    }
+
+    public long getRemaining() {
+        return global == null ? Long.MAX_VALUE : global.available();
+    }
+
+    // Redemptions this user confirmed before a restart, read back from the usage log
+    public void restore(String userId, int alreadyConfirmed) {
+        confirmed.add(alreadyConfirmed);
+        confirmedByUser.computeIfAbsent(userId, k -> new AtomicInteger()).addAndGet(alreadyConfirmed);
+        if (perUserLimit != Integer.MAX_VALUE) {
+            perUser.computeIfAbsent(userId, k -> new AtomicInteger()).addAndGet(alreadyConfirmed);
+        }
+        if (global != null) {
+            global.consume(alreadyConfirmed);
+        }
+    }
+}
+
+// One coupon held for one checkout, until payment or until it expires
+class CouponRedemption {
+    private static final int HELD = 0, CONFIRMED = 1, RELEASED = 2;
+
+    private final Coupon coupon;
+    private final String userId;
+    private final long expiresAt;       // epoch millis
+    private final AtomicInteger state = new AtomicInteger(HELD);
+
+    public CouponRedemption(Coupon coupon, String userId, long expiresAt) {
+        this.coupon    = coupon;
+        this.userId    = userId;
+        this.expiresAt = expiresAt;
+    }
+
+    public Coupon getCoupon() {
+        return coupon;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    public boolean confirm() {
+        if (!state.compareAndSet(HELD, CONFIRMED)) {
+            return false;
+        }
+        HoldReaper.getInstance().untrack(this);
+        coupon.getUsage().confirm(userId);
+        return true;
+    }
+
+    public boolean release() {
+        if (!state.compareAndSet(HELD, RELEASED)) {
+            return false;
+        }
+        HoldReaper.getInstance().untrack(this);
+        coupon.getUsage().release(userId);
+        return true;
+    }
+}
+
+// Gives back holds whose checkout was never finished. Open holds sit in one
+// concurrent set and a background sweep releases the ones past their expiry;
+// confirmed and released holds leave the set at once, so a sweep only walks
+// checkouts that are still open.
+class HoldReaper {
+    private static HoldReaper instance;
+    private final Set<CouponRedemption> held = ConcurrentHashMap.newKeySet();
+    private final AtomicLong reaped = new AtomicLong();
+    private volatile long holdTtlMillis = TimeUnit.MINUTES.toMillis(15);
+
+    private HoldReaper() {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "coupon-hold-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(() -> {
+            try {
+                sweep(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                System.out.println("Hold sweep failed: " + e.getMessage());
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public static synchronized HoldReaper getInstance() {
+        if (instance == null) {
+            instance = new HoldReaper();
+        }
+        return instance;
+    }
+
+    // How long a coupon stays held for a checkout that is not paid yet
+    public void setHoldTtl(long millis) {
+        this.holdTtlMillis = millis;
+    }
+
+    public long getHoldTtl() {
+        return holdTtlMillis;
+    }
+
+    public void track(CouponRedemption hold) {
+        held.add(hold);
+    }
+
+    public void untrack(CouponRedemption hold) {
+        held.remove(hold);
+    }
+
+    // Releases every expired hold, returns how many were given back
+    public int sweep(long now) {
+        int count = 0;
+        for (CouponRedemption hold : held) {
+            if (hold.isExpired(now) && hold.release()) {
+                count++;
+            }
+        }
+        reaped.addAndGet(count);
+        return count;
+    }
+
+    public int getHeldCount() {
+        return held.size();
+    }
+
+    public long getReapedCount() {
+        return reaped.get();
+    }
 }
 
 // ----------------------------
@@ -188,9 +586,56 @@ class Cart {
 // ----------------------------
 abstract class Coupon {
     private Coupon next;
+    private String id;          // key in the usage log, name() unless set
+    private long expiresAt;     // epoch millis, set before registering
+    private CouponUsage usage;
 
     public Coupon() {
-        this.next = null;
+        this.next      = null;
+        this.expiresAt = Long.MAX_VALUE;
+        this.usage     = CouponUsage.unlimited();
+    }
+
+    // Set before registering; Long.MAX_VALUE / Integer.MAX_VALUE mean no cap
+    public void setUsageLimits(long globalLimit, int perUserLimit) {
+        this.usage = new CouponUsage(globalLimit, perUserLimit);
+    }
+
+    public CouponUsage getUsage() {
+        return usage;
+    }
+
+    // Set before registering, and keep it the same across restarts: redemptions
+    // already used are found in the usage log under this id
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id != null ? id : name();
+    }
+
+    // null when the coupon is used up, for everyone or for this user
+    public CouponRedemption reserve(String userId, long now) {
+        if (!usage.tryReserve(userId)) {
+            return null;
+        }
+        HoldReaper reaper = HoldReaper.getInstance();
+        CouponRedemption hold = new CouponRedemption(this, userId, now + reaper.getHoldTtl());
+        reaper.track(hold);
+        return hold;
+    }
+
+    public void setExpiresAt(long epochMillis) {
+        this.expiresAt = epochMillis;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiresAt;
     }
 
     public void setNext(Coupon nxt) {
@@ -202,8 +647,12 @@ abstract class Coupon {
     }
 
     public void applyDiscount(Cart cart) {
-        if (isApplicable(cart)) {
-            double discount = getDiscount(cart);
+        applyDiscount(cart, CartAggregates.of(cart));
+    }
+
+    private void applyDiscount(Cart cart, CartAggregates agg) {
+        if (isApplicable(agg)) {
+            double discount = getDiscount(agg, cart.getCurrentTotal());
             cart.applyDiscount(discount);
             System.out.println(name() + " applied: " + discount);
             if (!isCombinable()) {
@@ -211,16 +660,34 @@ abstract class Coupon {
             }
         }
         if (next != null) {
-            next.applyDiscount(cart);
+            next.applyDiscount(cart, agg);
         }
     }
 
-    public abstract boolean isApplicable(Cart cart);
-    public abstract double getDiscount(Cart cart);
+    public boolean isApplicable(Cart cart) {
+        return isApplicable(CartAggregates.of(cart));
+    }
+
+    public double getDiscount(Cart cart) {
+        return getDiscount(CartAggregates.of(cart), cart.getCurrentTotal());
+    }
+
+    public abstract boolean isApplicable(CartAggregates agg);
+    // currentTotal is the cart total after the coupons applied before this one
+    public abstract double getDiscount(CartAggregates agg, double currentTotal);
     public boolean isCombinable() {
         return true;
     }
     public abstract String name();
+
+    // Only carts matching the key are evaluated against this coupon
+    public RuleIndex indexedBy() {
+        return RuleIndex.ANY;
+    }
+
+    public String indexKey() {
+        return null;
+    }
 }
 
 // ----------------------------
@@ -239,30 +706,29 @@ class SeasonalOffer extends Coupon {
     }
 
     @Override
-    public boolean isApplicable(Cart cart) {
-        for (CartItem item : cart.getItems()) {
-            if (item.getProduct().getCategory().equals(category)) {
-                return true;
-            }
-        }
-        return false;
+    public boolean isApplicable(CartAggregates agg) {
+        return agg.hasCategory(category);
     }
 
     @Override
-    public double getDiscount(Cart cart) {
-        double subtotal = 0.0;
-        for (CartItem item : cart.getItems()) {
-            if (item.getProduct().getCategory().equals(category)) {
-                subtotal += item.itemTotal();
-            }
-        }
-        return strat.calculate(subtotal);
+    public double getDiscount(CartAggregates agg, double currentTotal) {
+        return strat.calculate(agg.getCategoryTotal(category));
     }
 
     @Override
     public String name() {
         return "Seasonal Offer " + (int)percent + "% off " + category;
     }
+
+    @Override
+    public RuleIndex indexedBy() {
+        return RuleIndex.CATEGORY;
+    }
+
+    @Override
+    public String indexKey() {
+        return category;
+    }
 }
 
 class LoyaltyDiscount extends Coupon {
@@ -276,19 +742,24 @@ class LoyaltyDiscount extends Coupon {
     }
 
     @Override
-    public boolean isApplicable(Cart cart) {
-        return cart.isLoyaltyMember();
+    public boolean isApplicable(CartAggregates agg) {
+        return agg.isLoyaltyMember();
     }
 
     @Override
-    public double getDiscount(Cart cart) {
-        return strat.calculate(cart.getCurrentTotal());
+    public double getDiscount(CartAggregates agg, double currentTotal) {
+        return strat.calculate(currentTotal);
     }
 
     @Override
     public String name() {
         return "Loyalty Discount " + (int)percent + "% off";
     }
+
+    @Override
+    public RuleIndex indexedBy() {
+        return RuleIndex.LOYALTY;
+    }
 }
 
 class BulkPurchaseDiscount extends Coupon {
@@ -304,13 +775,13 @@ class BulkPurchaseDiscount extends Coupon {
     }
 
     @Override
-    public boolean isApplicable(Cart cart) {
-        return cart.getOriginalTotal() >= threshold;
+    public boolean isApplicable(CartAggregates agg) {
+        return agg.getOriginalTotal() >= threshold;
     }
 
     @Override
-    public double getDiscount(Cart cart) {
-        return strat.calculate(cart.getCurrentTotal());
+    public double getDiscount(CartAggregates agg, double currentTotal) {
+        return strat.calculate(currentTotal);
     }
 
     @Override
@@ -336,20 +807,727 @@ class BankingCoupon extends Coupon {
     }
 
     @Override
-    public boolean isApplicable(Cart cart) {
-        return cart.getPaymentBank().equals(bank)
-            && cart.getOriginalTotal() >= minSpend;
+    public boolean isApplicable(CartAggregates agg) {
+        return agg.getPaymentBank().equals(bank)
+            && agg.getOriginalTotal() >= minSpend;
     }
 
     @Override
-    public double getDiscount(Cart cart) {
-        return strat.calculate(cart.getCurrentTotal());
+    public double getDiscount(CartAggregates agg, double currentTotal) {
+        return strat.calculate(currentTotal);
     }
 
     @Override
     public String name() {
         return bank + " Bank Rs " + (int)percent + " off upto " + (int)offCap;
     }
+
+    @Override
+    public RuleIndex indexedBy() {
+        return RuleIndex.BANK;
+    }
+
+    @Override
+    public String indexKey() {
+        return bank;
+    }
+}
+
+// ----------------------------
+// CouponRuleEngine (indexed coupons)
+// ----------------------------
+// Coupons bucketed by what they key on: category, bank, loyalty, or nothing.
+// A cart only touches the buckets for its own categories and bank, and the
+// matched coupons run in registration order so results equal the chain's.
+// Built once from a coupon list and never changed, so any number of
+// threads can evaluate against it without locking.
+class CouponRuleEngine {
+    private static class Rule {
+        final int seq;
+        final Coupon coupon;
+
+        Rule(int seq, Coupon coupon) {
+            this.seq    = seq;
+            this.coupon = coupon;
+        }
+    }
+
+    private final Map<String, List<Rule>> byCategory = new HashMap<>();
+    private final Map<String, List<Rule>> byBank     = new HashMap<>();
+    private final List<Rule> loyalty = new ArrayList<>();
+    private final List<Rule> always  = new ArrayList<>();
+
+    public CouponRuleEngine(List<Coupon> coupons) {
+        int seq = 0;
+        for (Coupon coupon : coupons) {
+            Rule rule = new Rule(seq++, coupon);
+            switch (coupon.indexedBy()) {
+                case CATEGORY:
+                    byCategory.computeIfAbsent(coupon.indexKey(), k -> new ArrayList<>()).add(rule);
+                    break;
+                case BANK:
+                    byBank.computeIfAbsent(coupon.indexKey(), k -> new ArrayList<>()).add(rule);
+                    break;
+                case LOYALTY:
+                    loyalty.add(rule);
+                    break;
+                default:
+                    always.add(rule);
+            }
+        }
+    }
+
+    // Unexpired coupons whose index keys match the cart and that the user can still redeem
+    public List<Coupon> candidates(CartAggregates agg, long now) {
+        List<Coupon> res = new ArrayList<>();
+        for (Coupon coupon : matches(agg, now)) {
+            if (coupon.getUsage().hasQuota(agg.getUserId())) {
+                res.add(coupon);
+            }
+        }
+        return res;
+    }
+
+    // Unexpired coupons whose index keys match the cart, in registration order
+    public List<Coupon> matches(CartAggregates agg, long now) {
+        List<Rule> matched = new ArrayList<>(always);
+        for (String category : agg.getCategories()) {
+            matched.addAll(byCategory.getOrDefault(category, Collections.emptyList()));
+        }
+        matched.addAll(byBank.getOrDefault(agg.getPaymentBank(), Collections.emptyList()));
+        if (agg.isLoyaltyMember()) {
+            matched.addAll(loyalty);
+        }
+        matched.sort((a, b) -> Integer.compare(a.seq, b.seq));
+
+        List<Coupon> res = new ArrayList<>(matched.size());
+        for (Rule rule : matched) {
+            if (!rule.coupon.isExpired(now)) {
+                res.add(rule.coupon);
+            }
+        }
+        return res;
+    }
+
+    public List<String> getApplicable(Cart cart, long now) {
+        CartAggregates agg = CartAggregates.of(cart);
+        List<String> res = new ArrayList<>();
+        for (Coupon coupon : candidates(agg, now)) {
+            if (coupon.isApplicable(agg)) {
+                res.add(coupon.name());
+            }
+        }
+        return res;
+    }
+
+    // Same semantics as the chain: apply in order, stop after the first non-combinable one.
+    // Each applied coupon holds a redemption on the cart until payment. Applying
+    // again starts over, so the cart never holds the same coupon twice.
+    public double apply(Cart cart, long now) {
+        for (CouponRedemption old : cart.resetDiscounts()) {
+            old.release();
+        }
+        CartAggregates agg = CartAggregates.of(cart);
+        for (Coupon coupon : candidates(agg, now)) {
+            if (!coupon.isApplicable(agg)) {
+                continue;
+            }
+            CouponRedemption hold = coupon.reserve(agg.getUserId(), now);
+            if (hold == null) {
+                continue;       // used up since candidates() looked
+            }
+            cart.addRedemption(hold);
+            double discount = coupon.getDiscount(agg, cart.getCurrentTotal());
+            cart.applyDiscount(discount);
+            System.out.println(coupon.name() + " applied: " + discount);
+            if (!coupon.isCombinable()) {
+                break;
+            }
+        }
+        return cart.getCurrentTotal();
+    }
+
+    // What apply would do to a fresh copy of the cart, without touching it or holding coupons
+    public CartQuote quote(Cart cart, CartAggregates agg, long now) {
+        List<String> coupons   = new ArrayList<>();
+        List<Double> discounts = new ArrayList<>();
+        double running = agg.getOriginalTotal();
+        for (Coupon coupon : candidates(agg, now)) {
+            if (!coupon.isApplicable(agg)) {
+                continue;
+            }
+            double discount = coupon.getDiscount(agg, running);
+            running = Math.max(0.0, running - discount);
+            coupons.add(coupon.name());
+            discounts.add(discount);
+            if (!coupon.isCombinable()) {
+                break;
+            }
+        }
+        return new CartQuote(cart, coupons, discounts, agg.getOriginalTotal(), running);
+    }
+}
+
+// ----------------------------
+// Batch pricing
+// ----------------------------
+// The price of one cart from a batch run; the cart itself is left as it was
+class CartQuote {
+    private final Cart cart;
+    private final List<String> coupons;
+    private final List<Double> discounts;
+    private final double originalTotal;
+    private final double finalTotal;
+
+    public CartQuote(Cart cart, List<String> coupons, List<Double> discounts,
+                     double originalTotal, double finalTotal) {
+        this.cart          = cart;
+        this.coupons       = coupons;
+        this.discounts     = discounts;
+        this.originalTotal = originalTotal;
+        this.finalTotal    = finalTotal;
+    }
+
+    public Cart getCart() {
+        return cart;
+    }
+
+    public List<String> getCoupons() {
+        return coupons;
+    }
+
+    public List<Double> getDiscounts() {
+        return discounts;
+    }
+
+    public double getOriginalTotal() {
+        return originalTotal;
+    }
+
+    public double getFinalTotal() {
+        return finalTotal;
+    }
+}
+
+// Prices a list of carts on a fork-join pool against one coupon snapshot.
+// Each worker reuses its own scratch CartAggregates, and finished chunks are
+// handed to the caller's iterator as they complete, so the first quotes can
+// be read while the rest of the batch is still running. Quotes come out in
+// completion order, not input order.
+//
+// Read the iterator from a thread outside the pool: a pool worker blocked on
+// it would sit on chunks that may be queued behind it (for the common pool
+// that includes parallel streams and CompletableFuture.*Async callbacks).
+class BatchPricer {
+    private static final int CHUNK = 256;
+    private static final ThreadLocal<CartAggregates> SCRATCH = ThreadLocal.withInitial(CartAggregates::new);
+
+    private static class Chunk {
+        final List<CartQuote> quotes;
+        final RuntimeException error;       // the first chunk with one ends the batch
+
+        Chunk(List<CartQuote> quotes, RuntimeException error) {
+            this.quotes = quotes;
+            this.error  = error;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final long chunkTimeoutMillis;      // longest wait for the next chunk
+
+    public BatchPricer(ForkJoinPool pool) {
+        this(pool, 30_000);
+    }
+
+    public BatchPricer(ForkJoinPool pool, long chunkTimeoutMillis) {
+        this.pool = pool;
+        this.chunkTimeoutMillis = chunkTimeoutMillis;
+    }
+
+    // After the first error, timeout or interrupt the iterator is failed:
+    // hasNext() is false and next() throws that same error again
+    public Iterator<CartQuote> priceAll(List<Cart> carts, CouponRegistry.Snapshot snap, long now) {
+        if (ForkJoinTask.getPool() == pool) {
+            throw new IllegalStateException("priceAll must not be called from a thread of its own pool");
+        }
+        BlockingQueue<Chunk> done = new LinkedBlockingQueue<>();
+        if (!carts.isEmpty()) {
+            pool.execute(new PriceRange(carts, 0, carts.size(), snap.engine, now, done));
+        }
+        return new Iterator<CartQuote>() {
+            private int delivered = 0;
+            private Iterator<CartQuote> current = Collections.emptyIterator();
+            private RuntimeException failure;
+
+            @Override
+            public boolean hasNext() {
+                return failure == null && (current.hasNext() || delivered < carts.size());
+            }
+
+            @Override
+            public CartQuote next() {
+                if (failure != null) {
+                    throw failure;
+                }
+                while (!current.hasNext()) {
+                    if (delivered >= carts.size()) {
+                        throw new NoSuchElementException();
+                    }
+                    Chunk chunk;
+                    try {
+                        chunk = done.poll(chunkTimeoutMillis, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw failure = new RuntimeException("Interrupted waiting for batch pricing", e);
+                    }
+                    if (chunk == null) {
+                        throw failure = new RuntimeException("Batch pricing produced nothing for "
+                                                             + chunkTimeoutMillis + " ms");
+                    }
+                    if (chunk.error != null) {
+                        throw failure = chunk.error;
+                    }
+                    delivered += chunk.quotes.size();
+                    current = chunk.quotes.iterator();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    private static class PriceRange extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Cart> carts;
+        private final int from, to;
+        private final CouponRuleEngine engine;
+        private final long now;
+        private final BlockingQueue<Chunk> done;
+
+        PriceRange(List<Cart> carts, int from, int to, CouponRuleEngine engine, long now, BlockingQueue<Chunk> done) {
+            this.carts  = carts;
+            this.from   = from;
+            this.to     = to;
+            this.engine = engine;
+            this.now    = now;
+            this.done   = done;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNK) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new PriceRange(carts, from, mid, engine, now, done),
+                          new PriceRange(carts, mid, to, engine, now, done));
+                return;
+            }
+            try {
+                CartAggregates agg = SCRATCH.get();
+                List<CartQuote> quotes = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    Cart cart = carts.get(i);
+                    quotes.add(engine.quote(cart, agg.fill(cart), now));
+                }
+                done.add(new Chunk(quotes, null));
+            } catch (Throwable t) {
+                // Errors too: a chunk that never arrives would leave the reader waiting
+                RuntimeException e = t instanceof RuntimeException ? (RuntimeException) t
+                    : new RuntimeException("Pricing carts " + from + ".." + to + " failed", t);
+                done.add(new Chunk(Collections.emptyList(), e));
+            }
+        }
+    }
+}
+
+// ----------------------------
+// CouponRegistry (copy-on-write snapshots)
+// ----------------------------
+// The live coupon set is one immutable Snapshot behind an AtomicReference.
+// Readers grab the current snapshot and never block; register, remove and
+// expiry build the next version on the side and swap it in with a CAS.
+class CouponRegistry {
+    static final class Snapshot {
+        final long version;
+        final List<Coupon> coupons;
+        final CouponRuleEngine engine;
+        final long nextExpiry;      // earliest expiresAt among the coupons
+
+        Snapshot(long version, List<Coupon> coupons) {
+            this.version = version;
+            this.coupons = Collections.unmodifiableList(coupons);
+            this.engine  = new CouponRuleEngine(coupons);
+            long earliest = Long.MAX_VALUE;
+            for (Coupon coupon : coupons) {
+                earliest = Math.min(earliest, coupon.getExpiresAt());
+            }
+            this.nextExpiry = earliest;
+        }
+    }
+
+    private final AtomicReference<Snapshot> current =
+        new AtomicReference<>(new Snapshot(0, new ArrayList<>()));
+
+    // The version to evaluate against; expired coupons are dropped on the way
+    public Snapshot snapshot(long now) {
+        Snapshot snap = current.get();
+        if (snap.nextExpiry <= now) {
+            snap = purgeExpired(now);
+        }
+        return snap;
+    }
+
+    public Snapshot register(Coupon coupon) {
+        return current.updateAndGet(snap -> {
+            for (Coupon other : snap.coupons) {
+                if (other.getId().equals(coupon.getId())) {
+                    throw new RuntimeException("coupon id already registered: " + coupon.getId());
+                }
+            }
+            List<Coupon> next = new ArrayList<>(snap.coupons);
+            next.add(coupon);
+            return new Snapshot(snap.version + 1, next);
+        });
+    }
+
+    public Snapshot remove(Coupon coupon) {
+        return current.updateAndGet(snap -> {
+            if (!snap.coupons.contains(coupon)) {
+                return snap;
+            }
+            List<Coupon> next = new ArrayList<>(snap.coupons);
+            next.remove(coupon);
+            return new Snapshot(snap.version + 1, next);
+        });
+    }
+
+    public Snapshot purgeExpired(long now) {
+        return current.updateAndGet(snap -> {
+            if (snap.nextExpiry > now) {
+                return snap;
+            }
+            List<Coupon> next = new ArrayList<>();
+            for (Coupon coupon : snap.coupons) {
+                if (!coupon.isExpired(now)) {
+                    next.add(coupon);
+                }
+            }
+            return new Snapshot(snap.version + 1, next);
+        });
+    }
+}
+
+// ----------------------------
+// DiscountOptimizer (best coupon combination)
+// ----------------------------
+// Which coupons to use, and the discount each one gives when applied in order
+class DiscountPlan {
+    private final List<Coupon> coupons;
+    private final List<Double> discounts;
+    private final double originalTotal;
+    private final boolean optimal;      // false when the time budget ran out first
+
+    public DiscountPlan(List<Coupon> coupons, List<Double> discounts, double originalTotal, boolean optimal) {
+        this.coupons       = Collections.unmodifiableList(coupons);
+        this.discounts     = Collections.unmodifiableList(discounts);
+        this.originalTotal = originalTotal;
+        this.optimal       = optimal;
+    }
+
+    public List<Coupon> getCoupons() {
+        return coupons;
+    }
+
+    public List<Double> getDiscounts() {
+        return discounts;
+    }
+
+    public double getTotalDiscount() {
+        double sum = 0.0;
+        for (double d : discounts) {
+            sum += d;
+        }
+        return sum;
+    }
+
+    public double getFinalTotal() {
+        return originalTotal - getTotalDiscount();
+    }
+
+    public boolean isOptimal() {
+        return optimal;
+    }
+}
+
+// Finds the subset of coupons that saves the customer the most. A subset is
+// valid if the chain would apply all of it: coupons go in registration order
+// and only the last one may be non-combinable. Branch-and-bound over
+// include/exclude, where a coupon can never give more than it gives on the
+// full original total, so that sum bounds what the remaining coupons can add.
+// The chain's own result is the starting incumbent, so running out of time
+// never returns anything worse than applyAll would.
+class DiscountOptimizer {
+    private static final double EPS = 1e-9;
+
+    private final long budgetNanos;
+    private final Map<String, DiscountPlan> cache;
+
+    public DiscountOptimizer(long budgetMillis, int cacheSize) {
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<String, DiscountPlan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DiscountPlan> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    public DiscountPlan optimize(CouponRegistry.Snapshot snap, Cart cart, long now) {
+        CartAggregates agg = CartAggregates.of(cart);
+        String key = fingerprint(snap, agg);
+        DiscountPlan cached = cache.get(key);
+        if (cached != null && stillAvailable(cached, agg.getUserId())) {
+            return cached;
+        }
+        Search search = new Search(snap.engine, agg, now, System.nanoTime() + budgetNanos);
+        DiscountPlan plan = search.run();
+        // A plan shaped by someone's used-up quota would be wrong for other carts
+        if (plan.isOptimal() && !search.quotaSkipped) {
+            cache.put(key, plan);
+        }
+        return plan;
+    }
+
+    // A cached plan goes stale when one of its coupons runs out
+    private static boolean stillAvailable(DiscountPlan plan, String userId) {
+        for (Coupon coupon : plan.getCoupons()) {
+            if (!coupon.getUsage().hasQuota(userId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Coupons only see the aggregates, so carts with equal aggregates under the
+    // same coupon version get the same plan
+    private static String fingerprint(CouponRegistry.Snapshot snap, CartAggregates agg) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(snap.version).append('|').append(agg.isLoyaltyMember())
+          .append('|').append(agg.getPaymentBank()).append('|').append(agg.getOriginalTotal())
+          .append('|').append(agg.getItemCount());
+        for (String category : new TreeSet<>(agg.getCategories())) {
+            sb.append('|').append(category).append('=').append(agg.getCategoryTotal(category));
+        }
+        return sb.toString();
+    }
+
+    private static class Search {
+        private final CartAggregates agg;
+        private final Coupon[] coupons;
+        private final double[] suffixBound;     // most coupons i.. can still take off
+        private final long deadline;
+        private boolean timedOut = false;
+        private boolean quotaSkipped = false;
+        private long steps = 0;
+
+        private final Deque<Coupon> chosen    = new ArrayDeque<>();
+        private final Deque<Double> discounts = new ArrayDeque<>();
+        private List<Coupon> bestCoupons      = new ArrayList<>();
+        private List<Double> bestDiscounts    = new ArrayList<>();
+        private double best = 0.0;
+
+        Search(CouponRuleEngine engine, CartAggregates agg, long now, long deadline) {
+            this.agg      = agg;
+            this.deadline = deadline;
+            List<Coupon> applicable = new ArrayList<>();
+            for (Coupon coupon : engine.matches(agg, now)) {
+                if (!coupon.isApplicable(agg)) {
+                    continue;
+                }
+                if (!coupon.getUsage().hasQuota(agg.getUserId())) {
+                    quotaSkipped = true;
+                    continue;
+                }
+                applicable.add(coupon);
+            }
+            coupons     = applicable.toArray(new Coupon[0]);
+            suffixBound = new double[coupons.length + 1];
+            for (int i = coupons.length - 1; i >= 0; i--) {
+                suffixBound[i] = suffixBound[i + 1] + discountAt(coupons[i], agg.getOriginalTotal());
+            }
+        }
+
+        private double discountAt(Coupon coupon, double running) {
+            return Math.max(0.0, Math.min(coupon.getDiscount(agg, running), running));
+        }
+
+        DiscountPlan run() {
+            chainResult();
+            explore(0, agg.getOriginalTotal(), 0.0);
+            return new DiscountPlan(bestCoupons, bestDiscounts, agg.getOriginalTotal(), !timedOut);
+        }
+
+        // What applyAll would give, as the first incumbent
+        private void chainResult() {
+            double running = agg.getOriginalTotal();
+            for (Coupon coupon : coupons) {
+                double d = discountAt(coupon, running);
+                chosen.addLast(coupon);
+                discounts.addLast(d);
+                running -= d;
+                if (!coupon.isCombinable()) {
+                    break;
+                }
+            }
+            record(agg.getOriginalTotal() - running);
+            chosen.clear();
+            discounts.clear();
+        }
+
+        private void record(double total) {
+            if (total > best + EPS) {
+                best          = total;
+                bestCoupons   = new ArrayList<>(chosen);
+                bestDiscounts = new ArrayList<>(discounts);
+            }
+        }
+
+        private void explore(int i, double running, double saved) {
+            if (timedOut || ((++steps & 255) == 0 && System.nanoTime() > deadline)) {
+                timedOut = true;
+                return;
+            }
+            record(saved);
+            if (i == coupons.length || running <= 0.0
+                || Math.min(saved + suffixBound[i], agg.getOriginalTotal()) <= best + EPS) {
+                return;
+            }
+            Coupon coupon = coupons[i];
+            double d = discountAt(coupon, running);
+            chosen.addLast(coupon);
+            discounts.addLast(d);
+            if (coupon.isCombinable()) {
+                explore(i + 1, running - d, saved + d);
+            } else {
+                record(saved + d);      // the plan ends here
+            }
+            chosen.removeLast();
+            discounts.removeLast();
+            explore(i + 1, running, saved);
+        }
+    }
+}
+
+// ----------------------------
+// CouponUsageLog (durable redemption counts)
+// ----------------------------
+// Confirmed redemptions are counted in memory on the hot path. Every so often
+// the growth since the last pass is appended to a log and synced, and on
+// startup the log is summed up so the caps carry over a restart. One line per
+// user that confirmed, so per-user caps survive too:
+// "epochMillis<TAB>couponId<TAB>userId<TAB>delta".
+// The log keeps every coupon it has restored, not just the registered ones, so
+// a coupon that expired or was removed still gets its last confirmations written.
+class CouponUsageLog {
+    private final Path file;
+    private final Map<String, Map<String, Integer>> restored = new HashMap<>();  // coupon id -> user -> confirmed
+    private final Map<Coupon, Map<String, Integer>> written = new IdentityHashMap<>();  // every coupon seen -> user -> logged
+    private final Object writeLock = new Object();
+    private ScheduledExecutorService timer;
+
+    public CouponUsageLog(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t");
+                if (parts.length == 4) {
+                    restored.computeIfAbsent(parts[1], k -> new HashMap<>())
+                            .merge(parts[2], Integer.parseInt(parts[3]), Integer::sum);
+                }
+            }
+        }
+    }
+
+    // Re-applies what this coupon had already used up before the restart
+    public void restore(Coupon coupon) {
+        Map<String, Integer> used = restored.getOrDefault(coupon.getId(), Collections.emptyMap());
+        synchronized (writeLock) {
+            if (written.containsKey(coupon)) {
+                return;
+            }
+            for (Map.Entry<String, Integer> user : used.entrySet()) {
+                coupon.getUsage().restore(user.getKey(), user.getValue());
+            }
+            written.put(coupon, new HashMap<>(used));      // what the log already holds for it
+        }
+    }
+
+    public void reconcile(Collection<Coupon> coupons) {
+        synchronized (writeLock) {
+            StringBuilder sb = new StringBuilder();
+            long now = System.currentTimeMillis();
+            Map<Coupon, List<String>> taken = new IdentityHashMap<>();
+            Map<Coupon, Map<String, Integer>> counts = new IdentityHashMap<>();
+            for (Coupon coupon : coupons) {
+                CouponUsage usage = coupon.getUsage();
+                List<String> users = usage.takeUnlogged();
+                if (users.isEmpty()) {
+                    continue;
+                }
+                taken.put(coupon, users);
+                Map<String, Integer> logged = written.computeIfAbsent(coupon, k -> new HashMap<>());
+                Map<String, Integer> latest = counts.computeIfAbsent(coupon, k -> new HashMap<>());
+                for (String userId : users) {
+                    int confirmed = usage.getConfirmed(userId);
+                    int delta     = confirmed - logged.getOrDefault(userId, 0);
+                    if (delta > 0) {
+                        sb.append(now).append('\t').append(coupon.getId()).append('\t')
+                          .append(userId).append('\t').append(delta).append('\n');
+                        latest.put(userId, confirmed);
+                    }
+                }
+            }
+            if (sb.length() == 0) {
+                return;
+            }
+            try (FileOutputStream out = new FileOutputStream(file.toFile(), true)) {
+                out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            } catch (IOException e) {
+                // Nothing counts as written, the next pass tries these users again
+                taken.forEach((coupon, users) -> coupon.getUsage().markUnlogged(users));
+                throw new UncheckedIOException(e);
+            }
+            counts.forEach((coupon, confirmed) -> written.get(coupon).putAll(confirmed));
+        }
+    }
+
+    // Every coupon the log knows of, whether or not the registry still holds it
+    public void reconcileAll() {
+        List<Coupon> tracked;
+        synchronized (writeLock) {
+            tracked = new ArrayList<>(written.keySet());
+        }
+        reconcile(tracked);
+    }
+
+    public synchronized void start(long periodMillis) {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "coupon-usage-log");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::reconcileAll, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.shutdown();
+            timer = null;
+        }
+    }
 }
 
 // ----------------------------
@@ -357,12 +1535,12 @@ class BankingCoupon extends Coupon {
 // ----------------------------
 class CouponManager {
     private static CouponManager instance;
-    private Coupon head;
-    private final Lock lock = new ReentrantLock();
+    private final CouponRegistry registry = new CouponRegistry();
+    private final DiscountOptimizer optimizer = new DiscountOptimizer(5, 10_000);
+    private volatile CouponUsageLog usageLog;
+    private final BatchPricer batchPricer = new BatchPricer(ForkJoinPool.commonPool());
 
-    private CouponManager() {
-        this.head = null;
-    }
+    private CouponManager() {}
 
     public static synchronized CouponManager getInstance() {
         if (instance == null) {
@@ -372,48 +1550,123 @@ class CouponManager {
     }
 
     public void registerCoupon(Coupon coupon) {
-        lock.lock();
-        try {
-            if (head == null) {
-                head = coupon;
-            } else {
-                Coupon cur = head;
-                while (cur.getNext() != null) {
-                    cur = cur.getNext();
-                }
-                cur.setNext(coupon);
-            }
-        } finally {
-            lock.unlock();
+        CouponUsageLog log = usageLog;
+        if (log != null) {
+            log.restore(coupon);
         }
+        registry.register(coupon);
     }
 
-    public List<String> getApplicable(Cart cart) {
-        lock.lock();
-        try {
-            List<String> res = new ArrayList<>();
-            Coupon cur = head;
-            while (cur != null) {
-                if (cur.isApplicable(cart)) {
-                    res.add(cur.name());
-                }
-                cur = cur.getNext();
-            }
-            return res;
-        } finally {
-            lock.unlock();
+    public void removeCoupon(Coupon coupon) {
+        registry.remove(coupon);
+        CouponUsageLog log = usageLog;
+        if (log != null) {
+            log.reconcile(Collections.singletonList(coupon));
+        }
+    }
+
+    // Counts already in the log are restored for coupons registered afterwards
+    public void useUsageLog(Path file, long periodMillis) throws IOException {
+        CouponUsageLog log = new CouponUsageLog(file);
+        for (Coupon coupon : registry.snapshot(System.currentTimeMillis()).coupons) {
+            log.restore(coupon);
         }
+        usageLog = log;
+        log.start(periodMillis);
+    }
+
+    // Walks the log's own coupons: the registry drops expired ones before their last
+    // confirmations are written
+    public void reconcileUsage() {
+        CouponUsageLog log = usageLog;
+        if (log != null) {
+            log.reconcileAll();
+        }
+    }
+
+    public void shutdown() {
+        CouponUsageLog log = usageLog;
+        if (log != null) {
+            log.stop();
+            reconcileUsage();
+        }
+    }
+
+    public long getVersion() {
+        return registry.snapshot(System.currentTimeMillis()).version;
+    }
+
+    public List<String> getApplicable(Cart cart) {
+        long now = System.currentTimeMillis();
+        return registry.snapshot(now).engine.getApplicable(cart, now);
     }
 
     public double applyAll(Cart cart) {
-        lock.lock();
-        try {
-            if (head != null) {
-                head.applyDiscount(cart);
+        long now = System.currentTimeMillis();
+        return registry.snapshot(now).engine.apply(cart, now);
+    }
+
+    // Prices every cart against the same coupon version without changing any
+    // of them or holding coupons; quotes stream out as chunks finish
+    public Iterator<CartQuote> priceAll(List<Cart> carts) {
+        long now = System.currentTimeMillis();
+        return batchPricer.priceAll(carts, registry.snapshot(now), now);
+    }
+
+    // The combination that saves the most; the cart is left untouched
+    public DiscountPlan bestPlan(Cart cart) {
+        long now = System.currentTimeMillis();
+        return optimizer.optimize(registry.snapshot(now), cart, now);
+    }
+
+    // Holds every coupon of the best plan; if one runs out in between, the
+    // holds go back and the plan is worked out again. Like applyAll, this
+    // starts over from the original total and gives back earlier holds.
+    public double applyBest(Cart cart) {
+        for (CouponRedemption old : cart.resetDiscounts()) {
+            old.release();
+        }
+        for (int attempt = 0; attempt < 3; attempt++) {
+            DiscountPlan plan = bestPlan(cart);
+            long now = System.currentTimeMillis();
+            List<CouponRedemption> holds = new ArrayList<>();
+            for (Coupon coupon : plan.getCoupons()) {
+                CouponRedemption hold = coupon.reserve(cart.getUserId(), now);
+                if (hold == null) {
+                    break;
+                }
+                holds.add(hold);
+            }
+            if (holds.size() < plan.getCoupons().size()) {
+                for (CouponRedemption hold : holds) {
+                    hold.release();
+                }
+                continue;
+            }
+            for (int i = 0; i < plan.getCoupons().size(); i++) {
+                cart.addRedemption(holds.get(i));
+                cart.applyDiscount(plan.getDiscounts().get(i));
+                System.out.println(plan.getCoupons().get(i).name() + " applied: " + plan.getDiscounts().get(i));
             }
             return cart.getCurrentTotal();
-        } finally {
-            lock.unlock();
+        }
+        return applyAll(cart);
+    }
+
+    // Payment went through: the held coupons count as used. false when a hold
+    // had already expired and was given back, so the discount no longer stands
+    public boolean confirmPayment(Cart cart) {
+        boolean allHeld = true;
+        for (CouponRedemption redemption : cart.takeRedemptions()) {
+            allHeld &= redemption.confirm();
+        }
+        return allHeld;
+    }
+
+    // Checkout abandoned: the held coupons go back to the pool
+    public void cancelCheckout(Cart cart) {
+        for (CouponRedemption redemption : cart.takeRedemptions()) {
+            redemption.release();
         }
     }
 }
@@ -422,13 +1675,18 @@ class CouponManager {
 // Main: Client code
 // ----------------------------
 public class DiscountCoupon {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException, InterruptedException {
         CouponManager mgr = CouponManager.getInstance();
         mgr.registerCoupon(new SeasonalOffer(10, "Clothing"));
         mgr.registerCoupon(new LoyaltyDiscount(5));
         mgr.registerCoupon(new BulkPurchaseDiscount(1000, 100));
         mgr.registerCoupon(new BankingCoupon("ABC", 2000, 15, 500));
 
+        // A flash sale that has already ended is never offered
+        Coupon flashSale = new SeasonalOffer(50, "Electronics");
+        flashSale.setExpiresAt(System.currentTimeMillis() - 1);
+        mgr.registerCoupon(flashSale);
+
         Product p1 = new Product("Winter Jacket", "Clothing", 1000);
         Product p2 = new Product("Smartphone", "Electronics", 20000);
         Product p3 = new Product("Jeans", "Clothing", 1000);
@@ -452,5 +1710,61 @@ public class DiscountCoupon {
 
         double finalTotal = mgr.applyAll(cart);
         System.out.println("Final Cart Total after discounts: " + finalTotal + " Rs");
+
+        // Best combination for the same cart, not just what the chain happens to apply
+        DiscountPlan plan = mgr.bestPlan(cart);
+        System.out.println("Best combination saves " + plan.getTotalDiscount() + " Rs:");
+        for (Coupon coupon : plan.getCoupons()) {
+            System.out.println(" - " + coupon.name());
+        }
+        mgr.confirmPayment(cart);
+
+        // Flash sale: 3 redemptions in all, 1 per user, 8 shoppers checking out at once
+        Path usageFile = Files.createTempFile("coupon-usage", ".log");
+        mgr.useUsageLog(usageFile, 1000);
+        Coupon bookSale = new SeasonalOffer(30, "Books");
+        bookSale.setUsageLimits(3, 1);
+        mgr.registerCoupon(bookSale);
+
+        Product book = new Product("Novel", "Books", 500);
+        ExecutorService shoppers = Executors.newFixedThreadPool(8);
+        AtomicInteger redeemed = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            String user = "user" + i;
+            shoppers.submit(() -> {
+                Cart c = new Cart();
+                c.setUserId(user);
+                c.addProduct(book, 1);
+                if (mgr.applyAll(c) < c.getOriginalTotal()) {
+                    redeemed.incrementAndGet();
+                }
+                mgr.confirmPayment(c);
+            });
+        }
+        shoppers.shutdown();
+        shoppers.awaitTermination(10, TimeUnit.SECONDS);
+        mgr.shutdown();
+        System.out.println("Flash sale redeemed by " + redeemed.get() + " of 8 shoppers, "
+                           + bookSale.getUsage().getRemaining() + " left");
+        System.out.println("Usage log: " + Files.readAllLines(usageFile, StandardCharsets.UTF_8).size() + " entries");
+
+        // New offer goes live: re-price every abandoned cart in one batch
+        mgr.registerCoupon(new SeasonalOffer(20, "Electronics"));
+        List<Cart> abandoned = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            Cart c = new Cart();
+            c.setUserId("user" + i);
+            c.addProduct(i % 2 == 0 ? p2 : p4, 1);
+            c.addProduct(p1, 1 + i % 3);
+            c.setLoyaltyMember(i % 5 == 0);
+            abandoned.add(c);
+        }
+        double savings = 0.0;
+        Iterator<CartQuote> quotes = mgr.priceAll(abandoned);
+        while (quotes.hasNext()) {
+            CartQuote q = quotes.next();
+            savings += q.getOriginalTotal() - q.getFinalTotal();
+        }
+        System.out.println("Re-priced " + abandoned.size() + " abandoned carts, total savings " + Math.round(savings) + " Rs");
     }
 }
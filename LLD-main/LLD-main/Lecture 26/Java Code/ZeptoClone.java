@@ -1,5 +1,312 @@
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.lang.Math;
+import java.time.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.nio.file.*;
+import java.util.concurrent.locks.LockSupport;
+
+/////////////////////////////////////////////
+// EventSink (structured logging)
+/////////////////////////////////////////////
+
+// Every event the order path reports. The template renders it for the console,
+// {0} {1} are the texts, {2} {3} {4} the numbers and {5} the amount. The keys
+// name the same fields in the JSON lines written to file.
+enum EventType {
+    STOCK_ADDED("[InventoryManager] Added SKU {2} Qty {3}", null, null, "sku", "qty", null, null),
+    CART_ITEM_ADDED("[Cart] Added SKU {2} ({0}) x{3}", "product", null, "sku", "qty", null, null),
+    ORDER_STARTED("\n[OrderManager] Placing Order for: {0}", "user", null, null, null, null, null),
+    NO_STORE_NEARBY("  No dark stores within 5 KM. Cannot fulfill order.", "user", null, null, null, null, null),
+    ORDER_UNFULFILLABLE("  Could not fulfill:", "user", null, null, null, null, null),
+    SHORTFALL("    SKU {2} x{3}", null, null, "sku", "qty", null, null),
+    ORDER_REJECTED("  Order not placed, no stock was taken.", "user", null, null, null, null, null),
+    PLAN_RETRIES_EXHAUSTED("  Stock kept changing while planning. Please retry.", "user", null, null, null, null, null),
+    RESERVATION_EXPIRED("  Reservation at {0} expired before commit, planning again", "store", null, "reservationId", null, null, null),
+    ALL_AT_STORE("  All items at: {0}", "store", null, null, null, null, null),
+    ORDER_SPLIT("  Splitting order across {2} stores...", null, null, "stores", null, null, null),
+    STORE_PICK("   Checking: {0}", "store", null, null, null, null, null),
+    STORE_SUPPLIES("     {0} supplies SKU {2} x{3}", "store", null, "sku", "qty", null, null),
+    PARTNER_ASSIGNED("     Assigned: {1} for {0}", "store", "partner", "orderId", null, null, null),
+    PARTNER_QUEUED("     No partner free near {0}, pickup queued", "store", null, "orderId", null, null, null),
+    ORDER_SUMMARY("\n[OrderManager] Order #{2} Summary:\n  User: {0}\n  Items:", "user", null, "orderId", null, null, null),
+    ORDER_ITEM("    SKU {2} ({0}) x{3} @ ₹{5}", "product", null, "sku", "qty", null, "price"),
+    ORDER_TOTAL("  Total: ₹{5}\n  Partners:", null, null, "orderId", null, null, "total"),
+    ORDER_PARTNER("    {0}", "partner", null, "orderId", null, null, null),
+    ORDER_END("", null, null, "orderId", null, null, null),
+    THRESHOLD_CHECK("[ThresholdReplenish] Checking threshold...", null, null, null, null, null, null),
+    THRESHOLD_REFILL("  -> SKU {2} was {3}, replenished by {4}", null, null, "sku", "was", "added", null),
+    WEEKLY_CHECK("[WeeklyReplenish] Weekly replenishment triggered for inventory.", null, null, null, null, null, null),
+    WEEKLY_TOPUP("  -> SKU {2} was {3}, topped up to {4}", null, null, "sku", "was", "target", null),
+    FORECAST_CHECK("[ForecastReplenish] Sizing refills from demand forecast...", null, null, null, null, null, null),
+    FORECAST_TOPUP(2, "  -> SKU {2} was {3}, forecast {5}/period, topped up to {4}", null, null, "sku", "was", "target", "forecast"),
+    REPLENISH_BATCH("[ReplenishmentScheduler] Batch to {0} for {2} store(s)", "supplier", null, "stores", null, null, null),
+    REPLENISH_SCHEDULED("[ReplenishmentScheduler] {0} weekly top-up scheduled at {1}", "store", "runAt", null, null, null, null),
+    REPLENISH_FAILED("  Replenishment failed for {0}: {1}", "store", "error", null, null, null, null),
+    RESERVATION_REAPED("[ReservationReaper] Reservation #{2} expired, stock returned", null, null, "reservationId", null, null, null);
+
+    final String template;
+    final String[] keys;     // text1, text2, n1, n2, n3, amount (null = unused)
+    final int amountDecimals;  // fixed decimals for {5} when printed, -1 = as is
+
+    EventType(String template, String... keys) {
+        this(-1, template, keys);
+    }
+
+    EventType(int amountDecimals, String template, String... keys) {
+        this.template       = template;
+        this.keys           = keys;
+        this.amountDecimals = amountDecimals;
+    }
+}
+
+// One slot of the ring. Slots are allocated once and overwritten, so logging
+// allocates nothing on the caller's thread.
+class EventRecord {
+    volatile long sequence = -1;   // which event the slot holds, written last
+    long timeMillis;
+    EventType type;
+    String text1, text2;
+    long n1, n2, n3;
+    double amount;
+
+    String render() {
+        StringBuilder out = new StringBuilder();
+        String t = type.template;
+        for (int i = 0; i < t.length(); i++) {
+            char c = t.charAt(i);
+            if (c == '{' && i + 2 < t.length() && t.charAt(i + 2) == '}') {
+                int index = t.charAt(i + 1) - '0';
+                if (index == 5 && type.amountDecimals >= 0) {
+                    out.append(String.format("%." + type.amountDecimals + "f", amount));
+                } else {
+                    out.append(field(index));
+                }
+                i += 2;
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    Object field(int index) {
+        switch (index) {
+            case 0:  return text1;
+            case 1:  return text2;
+            case 2:  return n1;
+            case 3:  return n2;
+            case 4:  return n3;
+            default: return amount;
+        }
+    }
+
+    String toJson() {
+        StringBuilder out = new StringBuilder(96);
+        out.append("{\"ts\":").append(timeMillis).append(",\"type\":\"").append(type.name()).append('"');
+        for (int i = 0; i < type.keys.length; i++) {
+            if (type.keys[i] == null) continue;
+            out.append(",\"").append(type.keys[i]).append("\":");
+            Object value = field(i);
+            if (value instanceof String) {
+                appendJsonString(out, (String) value);
+            } else if (value instanceof Double && !Double.isFinite((Double) value)) {
+                out.append("null");     // JSON has no NaN / Infinity
+            } else {
+                out.append(value);
+            }
+        }
+        return out.append('}').toString();
+    }
+
+    private static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':  out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
+
+// Singleton - where the order path reports what happened.
+//   NO_OP   : events are dropped at the call site
+//   CONSOLE : rendered and printed right away on the caller's thread (demo / debugging)
+//   FILE    : copied into a preallocated ring buffer, a background writer drains it to
+//             rolling JSON-lines files. When the ring is full events are dropped and counted.
+class EventSink {
+    enum Mode { NO_OP, CONSOLE, FILE }
+
+    private static final int RING_SIZE = 1 << 16;
+    private static final long MAX_FILE_BYTES = 64L << 20;
+    private static EventSink instance;
+
+    private volatile Mode mode = Mode.CONSOLE;
+    private final EventRecord[] ring = new EventRecord[RING_SIZE];
+    private final AtomicLong claimed  = new AtomicLong();   // next sequence to hand out
+    private final AtomicLong consumed = new AtomicLong();   // next sequence the writer reads
+    private final AtomicLong dropped  = new AtomicLong();
+    private Thread writer;
+    private Path dir;
+    private int fileIndex;
+    private long fileBytes;
+    private BufferedWriter out;
+
+    private EventSink() {
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new EventRecord();
+        }
+    }
+
+    public static synchronized EventSink getInstance() {
+        if (instance == null) {
+            instance = new EventSink();
+        }
+        return instance;
+    }
+
+    public synchronized void useConsole() {
+        mode = Mode.CONSOLE;
+    }
+
+    public synchronized void disable() {
+        mode = Mode.NO_OP;
+    }
+
+    public synchronized void useFile(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        rollFile();
+        if (writer == null) {
+            writer = new Thread(this::drainLoop, "event-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        mode = Mode.FILE;
+    }
+
+    public boolean isEnabled() {
+        return mode != Mode.NO_OP;
+    }
+
+    public void emit(EventType type) {
+        emit(type, null, null, 0, 0, 0, 0);
+    }
+
+    public void emit(EventType type, String text1) {
+        emit(type, text1, null, 0, 0, 0, 0);
+    }
+
+    public void emit(EventType type, String text1, String text2, long n1, long n2, long n3, double amount) {
+        Mode m = mode;
+        if (m == Mode.NO_OP) 
+            return;
+        if (m == Mode.CONSOLE) {
+            EventRecord record = new EventRecord();
+            fill(record, type, text1, text2, n1, n2, n3, amount);
+            System.out.println(record.render());
+            return;
+        }
+
+        // Claim a slot unless the writer is a whole ring behind
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed.get() >= RING_SIZE) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        EventRecord record = ring[(int) (seq & (RING_SIZE - 1))];
+        fill(record, type, text1, text2, n1, n2, n3, amount);
+        record.sequence = seq;   // publish
+    }
+
+    private static void fill(EventRecord record, EventType type, String text1, String text2, 
+                             long n1, long n2, long n3, double amount) {
+        record.timeMillis = System.currentTimeMillis();
+        record.type   = type;
+        record.text1  = text1;
+        record.text2  = text2;
+        record.n1     = n1;
+        record.n2     = n2;
+        record.n3     = n3;
+        record.amount = amount;
+    }
+
+    private void drainLoop() {
+        while (true) {
+            long next = consumed.get();
+            EventRecord record = ring[(int) (next & (RING_SIZE - 1))];
+            if (record.sequence != next) {
+                flushQuietly();
+                LockSupport.parkNanos(200_000);
+                continue;
+            }
+            String line = record.toJson();
+            consumed.set(next + 1);    // slot can be reused from here on
+            try {
+                synchronized (this) {
+                    if (fileBytes >= MAX_FILE_BYTES) {
+                        rollFile();
+                    }
+                    out.write(line);
+                    out.newLine();
+                    fileBytes += line.length() + 1;
+                }
+            } catch (IOException e) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private void rollFile() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        Path file = dir.resolve("events-" + (fileIndex++) + ".jsonl");
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        fileBytes = 0;
+    }
+
+    private synchronized void flushQuietly() {
+        try {
+            if (out != null) out.flush();
+        } catch (IOException e) {
+            // nothing to do, the next write will report it
+        }
+    }
+
+    // Waits until everything emitted so far is on disk
+    public void flush() {
+        long target = claimed.get();
+        while (mode == Mode.FILE && consumed.get() < target) {
+            LockSupport.parkNanos(100_000);
+        }
+        flushQuietly();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
 
 /////////////////////////////////////////////
 // Product & Factory
@@ -9,11 +316,17 @@ class Product {
     private int sku;
     private String name;
     private double price;
+    private String category;
 
     public Product(int id, String nm, double pr) {
-        sku   = id;
-        name  = nm;
-        price = pr;
+        this(id, nm, pr, "General");
+    }
+
+    public Product(int id, String nm, double pr, String cat) {
+        sku      = id;
+        name     = nm;
+        price    = pr;
+        category = cat;
     }
 
     // Getters & Setters
@@ -28,39 +341,333 @@ class Product {
     public double getPrice() {
         return this.price;
     }
+
+    public String getCategory() {
+        return this.category;
+    }
+}
+
+// Every product we sell, built once and never changed afterwards.
+// In reality the products come from DB when the service starts.
+final class ProductCatalog {
+    private static final ProductCatalog INSTANCE = new ProductCatalog(Arrays.asList(
+        new Product(101, "Apple", 20, "Fruits"),
+        new Product(102, "Banana", 10, "Fruits"),
+        new Product(103, "Chocolate", 50, "Snacks"),
+        new Product(201, "T-Shirt", 500, "Apparel"),
+        new Product(202, "Jeans", 1000, "Apparel")
+    ));
+
+    private final IntIntOpenMap index;      // SKU -> position in products
+    private final Product[] products;
+
+    private ProductCatalog(List<Product> all) {
+        index    = new IntIntOpenMap(all.size());
+        products = all.toArray(new Product[0]);
+        for (int i = 0; i < products.length; i++) {
+            index.put(products[i].getSku(), i);
+        }
+    }
+
+    public static ProductCatalog getInstance() {
+        return INSTANCE;
+    }
+
+    // null when the SKU is not in the catalog
+    public Product get(int sku) {
+        int i = index.get(sku, -1);
+        return i < 0 ? null : products[i];
+    }
+
+    // Position of the SKU in the catalog, -1 when it is not there
+    public int positionOf(int sku) {
+        return index.get(sku, -1);
+    }
+
+    public Product at(int position) {
+        return products[position];
+    }
+
+    public int size() {
+        return products.length;
+    }
 }
 
 class ProductFactory {
     public static Product createProduct(int sku) {
-        // In reality product comes from DB
-        String name;
-        double price;
+        // Catalog products are shared, only unknown SKUs get a new placeholder
+        Product product = ProductCatalog.getInstance().get(sku);
+        if (product != null) {
+            return product;
+        }
+        return new Product(sku, "Item" + sku, 100);
+    }
+}
+
+/////////////////////////////////////////////
+// ProductSearchIndex (typeahead & availability)
+/////////////////////////////////////////////
+
+// Inverted index over the catalog. Every word of a product name and its category is a
+// term, and each term points to a bitmap of catalog positions. Terms are kept sorted,
+// so a prefix is a binary search plus a short walk. Each store also keeps a bitmap of
+// what it has on the shelf, so "what near me matches 'choc'" is bitmap AND/OR only.
+class ProductSearchIndex {
+    private static final ProductSearchIndex INSTANCE = new ProductSearchIndex(ProductCatalog.getInstance());
+
+    private final ProductCatalog catalog;
+    private final String[] terms;                   // sorted, lower case
+    private final BitSet[] postings;                // term -> catalog positions
+    private Map<DarkStore,BitSet> availability = new ConcurrentHashMap<>();
+
+    private ProductSearchIndex(ProductCatalog catalog) {
+        this.catalog = catalog;
+        TreeMap<String,BitSet> byTerm = new TreeMap<>();
+        for (int pos = 0; pos < catalog.size(); pos++) {
+            Product product = catalog.at(pos);
+            for (String term : tokenize(product.getName() + " " + product.getCategory())) {
+                byTerm.computeIfAbsent(term, k -> new BitSet(catalog.size())).set(pos);
+            }
+        }
+        terms    = byTerm.keySet().toArray(new String[0]);
+        postings = byTerm.values().toArray(new BitSet[0]);
+    }
+
+    public static ProductSearchIndex getInstance() {
+        return INSTANCE;
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        for (String token : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) tokens.add(token);
+        }
+        return tokens;
+    }
+
+    // Index of the first term >= prefix
+    private int firstTermFrom(String prefix) {
+        int i = Arrays.binarySearch(terms, prefix);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    // Catalog positions with a term starting with every word of the query ("dark choc")
+    private BitSet matching(String query) {
+        BitSet result = null;
+        for (String word : tokenize(query)) {
+            BitSet forWord = new BitSet(catalog.size());
+            for (int i = firstTermFrom(word); i < terms.length && terms[i].startsWith(word); i++) {
+                forWord.or(postings[i]);
+            }
+            if (result == null) {
+                result = forWord;
+            } else {
+                result.and(forWord);
+            }
+        }
+        return result == null ? new BitSet() : result;
+    }
 
-        if (sku == 101) {
-            name  = "Apple";
-            price = 20;
+    // Completions for the last word being typed, at most limit of them
+    public List<String> suggest(String prefix, int limit) {
+        String word = prefix.toLowerCase(Locale.ROOT).trim();
+        List<String> suggestions = new ArrayList<>();
+        for (int i = firstTermFrom(word); i < terms.length && terms[i].startsWith(word) 
+                                          && suggestions.size() < limit; i++) {
+            suggestions.add(terms[i]);
         }
-        else if (sku == 102) {
-            name  = "Banana";
-            price = 10;
+        return suggestions;
+    }
+
+    // Catalog products matching the query, whether in stock or not
+    public List<Product> search(String query) {
+        return toProducts(matching(query));
+    }
+
+    // Matching products that at least one of the stores has on its shelf;
+    // an empty query returns everything they have
+    public List<Product> searchAvailable(String query, List<DarkStore> stores) {
+        BitSet inStock = new BitSet(catalog.size());
+        for (DarkStore store : stores) {
+            BitSet onShelf = availability.get(store);
+            if (onShelf == null) continue;
+            synchronized (onShelf) {
+                inStock.or(onShelf);
+            }
         }
-        else if (sku == 103) {
-            name  = "Chocolate";
-            price = 50;
+        if (!tokenize(query).isEmpty()) {
+            inStock.and(matching(query));
         }
-        else if (sku == 201) {
-            name  = "T-Shirt";
-            price = 500;
+        return toProducts(inStock);
+    }
+
+    private List<Product> toProducts(BitSet positions) {
+        List<Product> products = new ArrayList<>(positions.cardinality());
+        for (int pos = positions.nextSetBit(0); pos >= 0; pos = positions.nextSetBit(pos + 1)) {
+            products.add(catalog.at(pos));
         }
-        else if (sku == 202) {
-            name  = "Jeans";
-            price = 1000;
+        return products;
+    }
+
+    // Called by DarkStore after a SKU's quantity changes; SKUs outside the catalog are not searchable.
+    // Stock is read under the bitmap lock, so whichever update runs last leaves the bit right.
+    public void updateAvailability(DarkStore store, int sku) {
+        int pos = catalog.positionOf(sku);
+        if (pos < 0) 
+            return;
+        BitSet onShelf = availability.computeIfAbsent(store, k -> new BitSet(catalog.size()));
+        synchronized (onShelf) {
+            onShelf.set(pos, store.checkStock(sku) > 0);
         }
-        else {
-            name  = "Item" + sku;
-            price = 100;
+    }
+
+    public void removeStore(DarkStore store) {
+        availability.remove(store);
+    }
+}
+
+/////////////////////////////////////////////
+// IntIntOpenMap (primitive SKU map)
+/////////////////////////////////////////////
+
+// int -> int hash map with open addressing and linear probing. Nothing is boxed,
+// so lookups never allocate. Not thread safe.
+class IntIntOpenMap {
+    private static final int FREE = Integer.MIN_VALUE;   // key of an empty slot, cannot be stored
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    public IntIntOpenMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys   = new int[capacity];
+        values = new int[capacity];
+        mask   = capacity - 1;
+        Arrays.fill(keys, FREE);
+    }
+
+    private int slotOf(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    // Slot holding key, or the free slot where it would go
+    private int find(int key) {
+        int slot = slotOf(key);
+        while (keys[slot] != FREE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public int get(int key, int missingValue) {
+        int slot = find(key);
+        return keys[slot] == FREE ? missingValue : values[slot];
+    }
+
+    public boolean containsKey(int key) {
+        return keys[find(key)] != FREE;
+    }
+
+    public void put(int key, int value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Key " + key + " is reserved");
+        }
+        int slot = find(key);
+        if (keys[slot] == FREE) {
+            keys[slot] = key;
+            size++;
+            if (size * 2 > keys.length) {
+                values[slot] = value;
+                grow();
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    // Adds delta to the value (missing counts as 0) and returns the new value
+    public int addTo(int key, int delta) {
+        int slot = find(key);
+        int value = (keys[slot] == FREE ? 0 : values[slot]) + delta;
+        if (keys[slot] == FREE) {
+            put(key, value);
+        } else {
+            values[slot] = value;
+        }
+        return value;
+    }
+
+    public int remove(int key, int missingValue) {
+        int slot = find(key);
+        if (keys[slot] == FREE) {
+            return missingValue;
+        }
+        int removed = values[slot];
+        size--;
+        // Shift later entries of the same probe run back so lookups still find them
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != FREE) {
+            int home = slotOf(keys[next]);
+            boolean movable = (hole <= next) ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                keys[hole]   = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = FREE;
+        return removed;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys, oldValues = values;
+        allocate(keys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = find(oldKeys[i]);
+                keys[slot]   = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
         }
-        return new Product(sku, name, price);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public IntIntOpenMap copy() {
+        IntIntOpenMap copy = new IntIntOpenMap(0);
+        copy.keys   = keys.clone();
+        copy.values = values.clone();
+        copy.size   = size;
+        copy.mask   = mask;
+        return copy;
+    }
+
+    // Slot iteration: for (int i = 0; i < map.capacity(); i++) if (map.isUsed(i)) ...
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return keys[slot] != FREE;
+    }
+
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public int valueAt(int slot) {
+        return values[slot];
     }
 }
 
@@ -73,197 +680,1630 @@ interface InventoryStore {
     void removeProduct(int sku, int qty);
     int checkStock(int sku);
     List<Product> listAvailableProducts();
+
+    // Two-phase checkout: hold whatever is available of each SKU (possibly less than
+    // asked), then either commit the hold or give it back. Holds expire after ttlMillis.
+    Reservation reserve(Map<Integer,Integer> wanted, long ttlMillis);
+    boolean commit(Reservation reservation);
+    void release(Reservation reservation);
 }
 
+// Store backed by a redo log. Every mutation is applied in memory under the monitor
+// and appended to the store's log in the same order; the caller returns once the log
+// record is on disk. Memory may run ahead of the disk by the records still in flight,
+// which is safe because the log only ever holds a prefix of that same order: the first
+// failed write stops the store (fail-stop), after which it refuses every change until
+// it is reopened from its log. Without a log (no-arg constructor) it stays in memory.
 class DbInventoryStore implements InventoryStore {
-    private Map<Integer,Integer> stock;         // SKU -> quantity
+    private IntIntOpenMap stock;                // SKU -> quantity (not counting held stock)
     private Map<Integer,Product> products;      // SKU -> Product
+    private Map<Long,Map<Integer,Integer>> openHolds = new HashMap<>();  // reservation id -> SKU -> qty
+    private InventoryLog log;                   // null = in memory only
 
     public DbInventoryStore() {
-        stock    = new HashMap<>();
+        stock    = new IntIntOpenMap(16);
         products = new HashMap<>();
     }
 
+    // Durable store, call InventoryLogWriter.recover to open an existing one
+    DbInventoryStore(InventoryLog log) {
+        this();
+        this.log = log;
+    }
+
     @Override
     public void addProduct(Product prod, int qty) {
         int sku = prod.getSku();
-        if (!products.containsKey(sku)) {
-            products.put(sku, prod);
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            checkWritable();
+            products.putIfAbsent(sku, prod);     // else drop the extra prod instance
+            applyAdd(sku, qty);
+            durable = append(InventoryLog.ADD, sku, qty, 0);
         }
-        // else drop the extra prod instance
-        stock.put(sku, stock.getOrDefault(sku, 0) + qty);
+        InventoryLog.await(durable);
     }
 
     @Override
     public void removeProduct(int sku, int qty) {
-        if (!stock.containsKey(sku)) 
-            return;
-
-        int currentQuantity   = stock.get(sku);
-        int remainingQuantity = currentQuantity - qty;
-        if (remainingQuantity > 0) {
-            stock.put(sku, remainingQuantity);
-        } else {
-            stock.remove(sku);
-            products.remove(sku);
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            checkWritable();
+            if (!stock.containsKey(sku)) 
+                return;
+            applyRemove(sku, qty);
+            durable = append(InventoryLog.REMOVE, sku, qty, 0);
         }
+        InventoryLog.await(durable);
     }
 
     @Override
-    public int checkStock(int sku) {
-        return stock.getOrDefault(sku, 0);
+    public synchronized int checkStock(int sku) {
+        return stock.get(sku, 0);
     }
 
     @Override
-    public List<Product> listAvailableProducts() {
+    public synchronized List<Product> listAvailableProducts() {
         List<Product> available = new ArrayList<>();
-        for (Map.Entry<Integer,Integer> it : stock.entrySet()) {
-            int sku = it.getKey();
-            int qty = it.getValue();
+        for (int slot = 0; slot < stock.capacity(); slot++) {
+            if (!stock.isUsed(slot)) continue;
+            int sku = stock.keyAt(slot);
+            int qty = stock.valueAt(slot);
             if (qty > 0 && products.containsKey(sku)) {
                 available.add(products.get(sku));
             }
         }
         return available;
     }
-}
 
-/////////////////////////////////////////////
-// InventoryManager 
-/////////////////////////////////////////////
+    @Override
+    public Reservation reserve(Map<Integer,Integer> wanted, long ttlMillis) {
+        Map<Integer,Integer> held = new LinkedHashMap<>();
+        Reservation reservation;
+        CompletableFuture<Void> durable = null;
+        synchronized (this) {
+            checkWritable();
+            for (Map.Entry<Integer,Integer> it : wanted.entrySet()) {
+                int taken = Math.min(stock.get(it.getKey(), 0), it.getValue());
+                if (taken > 0) {
+                    held.put(it.getKey(), taken);
+                }
+            }
+            reservation = Reservation.open(this, held, ttlMillis);
+            for (Map.Entry<Integer,Integer> it : held.entrySet()) {
+                applyReserve(reservation.getId(), it.getKey(), it.getValue());
+                durable = append(InventoryLog.RESERVE, it.getKey(), it.getValue(), reservation.getId());
+            }
+        }
+        try {
+            InventoryLog.await(durable);     // the last line is forced together with or after the others
+        } catch (RuntimeException e) {
+            // The store is stopped now; lines that did reach the log come back as an orphaned hold
+            reservation.markReleased();
+            throw e;
+        }
+        return reservation;
+    }
 
-class InventoryManager {
-    private InventoryStore store;
+    @Override
+    public boolean commit(Reservation reservation) {
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            checkWritable();
+            if (!reservation.markCommitted()) {
+                return false;
+            }
+            if (reservation.isEmpty()) {
+                return true;
+            }
+            applyCommit(reservation.getId());
+            durable = append(InventoryLog.COMMIT, 0, 0, reservation.getId());
+        }
+        InventoryLog.await(durable);
+        return true;
+    }
 
-    public InventoryManager(InventoryStore store) {
-        this.store = store;
+    @Override
+    public void release(Reservation reservation) {
+        CompletableFuture<Void> durable;
+        synchronized (this) {
+            checkWritable();
+            if (!reservation.markReleased() || reservation.isEmpty()) 
+                return;
+            applyRelease(reservation.getId());
+            durable = append(InventoryLog.RELEASE, 0, 0, reservation.getId());
+        }
+        InventoryLog.await(durable);
     }
 
-    public void addStock(int sku, int qty) {
-        Product prod = ProductFactory.createProduct(sku);
-        store.addProduct(prod, qty);
-        System.out.println("[InventoryManager] Added SKU " + sku + " Qty " + qty);
+    // Once a write has failed, memory may hold changes the log lacks; taking more on top
+    // would let the log diverge for good, so the store stays read-only until reopened
+    private void checkWritable() {
+        if (log != null && log.broken) {
+            throw new RuntimeException("Inventory log of " + log.storeName 
+                                       + " failed, reopen the store from its log");
+        }
     }
 
-    public void removeStock(int sku, int qty) {
-        store.removeProduct(sku, qty);
+    private CompletableFuture<Void> append(byte op, int sku, int qty, long reservationId) {
+        return log == null ? null : log.append(op, sku, qty, reservationId);
     }
 
-    public int checkStock(int sku) {
-        return store.checkStock(sku);
+    // The apply methods are shared by live calls and log replay, so both end up in the same state
+
+    private void applyAdd(int sku, int qty) {
+        stock.addTo(sku, qty);
     }
 
-    public List<Product> getAvailableProducts() {
-        return store.listAvailableProducts();
+    private void applyRemove(int sku, int qty) {
+        int remainingQuantity = stock.get(sku, 0) - qty;
+        if (remainingQuantity > 0) {
+            stock.put(sku, remainingQuantity);
+        } else {
+            stock.remove(sku, 0);
+            // An open hold may still hand this SKU back, so keep the product until it is gone
+            if (!isHeld(sku)) {
+                products.remove(sku);
+            }
+        }
     }
-}
 
-/////////////////////////////////////////////
-// Replenishment Strategy (Strategy Pattern)
-/////////////////////////////////////////////
+    // Only runs when a SKU sells out, so a scan of the open holds is cheap enough
+    private boolean isHeld(int sku) {
+        for (Map<Integer,Integer> held : openHolds.values()) {
+            if (held.containsKey(sku)) 
+                return true;
+        }
+        return false;
+    }
 
-interface ReplenishStrategy {
-    void replenish(InventoryManager manager, Map<Integer,Integer> itemsToReplenish);
-}
+    private void applyReserve(long reservationId, int sku, int qty) {
+        stock.addTo(sku, -qty);
+        openHolds.computeIfAbsent(reservationId, k -> new HashMap<>()).merge(sku, qty, Integer::sum);
+    }
 
-class ThresholdReplenishStrategy implements ReplenishStrategy {
-    private int threshold;
+    private void applyCommit(long reservationId) {
+        openHolds.remove(reservationId);
+    }
 
-    public ThresholdReplenishStrategy(int threshold) {
-        this.threshold = threshold;
+    private void applyRelease(long reservationId) {
+        Map<Integer,Integer> held = openHolds.remove(reservationId);
+        if (held == null) 
+            return;
+        for (Map.Entry<Integer,Integer> it : held.entrySet()) {
+            stock.addTo(it.getKey(), it.getValue());
+        }
     }
 
-    @Override
-    public void replenish(InventoryManager manager, Map<Integer,Integer> itemsToReplenish) {
-        System.out.println("[ThresholdReplenish] Checking threshold...");
-        for (Map.Entry<Integer,Integer> it : itemsToReplenish.entrySet()) {
-            int sku       = it.getKey();
-            int qtyToAdd  = it.getValue();
-            int current   = manager.checkStock(sku);
-            if (current < threshold) {
-                manager.addStock(sku, qtyToAdd);
-                System.out.println("  -> SKU " + sku + " was " + current 
-                                 + ", replenished by " + qtyToAdd);
+    synchronized void replay(byte op, int sku, int qty, long reservationId) {
+        switch (op) {
+            case InventoryLog.ADD:
+                products.putIfAbsent(sku, ProductFactory.createProduct(sku));
+                applyAdd(sku, qty);
+                break;
+            case InventoryLog.REMOVE:
+                applyRemove(sku, qty);
+                break;
+            case InventoryLog.RESERVE:
+                applyReserve(reservationId, sku, qty);
+                break;
+            case InventoryLog.COMMIT:
+                applyCommit(reservationId);
+                break;
+            case InventoryLog.RELEASE:
+                applyRelease(reservationId);
+                break;
+            default:
+                throw new RuntimeException("Unknown inventory log op " + op);
+        }
+    }
+
+    // Holds that were open when the process died belong to checkouts that are gone
+    synchronized void releaseOrphanedHolds() {
+        CompletableFuture<Void> durable = null;
+        for (Long reservationId : new ArrayList<>(openHolds.keySet())) {
+            applyRelease(reservationId);
+            durable = append(InventoryLog.RELEASE, 0, 0, reservationId);
+        }
+        InventoryLog.await(durable);
+    }
+
+    // Consistent copy for a snapshot: SKU/qty pairs, then every open hold
+    synchronized void writeState(DataOutputStream out) throws IOException {
+        out.writeInt(stock.size());
+        for (int slot = 0; slot < stock.capacity(); slot++) {
+            if (!stock.isUsed(slot)) continue;
+            out.writeInt(stock.keyAt(slot));
+            out.writeInt(stock.valueAt(slot));
+        }
+        out.writeInt(openHolds.size());
+        for (Map.Entry<Long,Map<Integer,Integer>> hold : openHolds.entrySet()) {
+            out.writeLong(hold.getKey());
+            out.writeInt(hold.getValue().size());
+            for (Map.Entry<Integer,Integer> it : hold.getValue().entrySet()) {
+                out.writeInt(it.getKey());
+                out.writeInt(it.getValue());
+            }
+        }
+    }
+
+    synchronized void readState(DataInputStream in) throws IOException {
+        int skus = in.readInt();
+        for (int i = 0; i < skus; i++) {
+            int sku = in.readInt();
+            stock.put(sku, in.readInt());
+            products.putIfAbsent(sku, ProductFactory.createProduct(sku));
+        }
+        int holds = in.readInt();
+        for (int i = 0; i < holds; i++) {
+            long reservationId = in.readLong();
+            Map<Integer,Integer> held = new HashMap<>();
+            int lines = in.readInt();
+            for (int j = 0; j < lines; j++) {
+                held.put(in.readInt(), in.readInt());
+            }
+            openHolds.put(reservationId, held);
+        }
+    }
+
+    // Captured under the monitor, so the snapshot sits at the same point in the log
+    // queue as the state it holds - later mutations land in the next segment only
+    synchronized CompletableFuture<Void> snapshot() {
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        try {
+            writeState(new DataOutputStream(state));
+        } catch (IOException e) {
+            throw new RuntimeException(e);    // in-memory stream
+        }
+        return log.snapshot(state.toByteArray());
+    }
+}
+
+/////////////////////////////////////////////
+// InventoryLog & InventoryLogWriter (durability)
+/////////////////////////////////////////////
+
+// One store's log: numbered segments log-N.bin of [len][crc][op sku qty reservationId]
+// frames, plus snapshot.bin holding the full state and the first segment to replay after it.
+class InventoryLog {
+    static final byte ADD = 1, REMOVE = 2, RESERVE = 3, COMMIT = 4, RELEASE = 5;
+    static final int RECORD_BYTES = 1 + 4 + 4 + 8;
+
+    final String storeName;
+    final Path dir;
+    long segment;            // segment being appended to, touched only by the writer thread
+    FileChannel channel;     // same
+    long durableSize;        // same - segment length as of the last force
+    volatile boolean broken; // a write failed - set before its caller hears, nothing more is accepted
+    private InventoryLogWriter writer;
+    DbInventoryStore store;
+
+    InventoryLog(String storeName, Path dir, long segment, InventoryLogWriter writer) throws IOException {
+        this.storeName = storeName;
+        this.dir       = dir;
+        this.segment   = segment;
+        this.writer    = writer;
+        this.channel   = openSegment(segment);
+        this.durableSize = channel.size();
+    }
+
+    FileChannel openSegment(long n) throws IOException {
+        return FileChannel.open(dir.resolve("log-" + n + ".bin"), 
+                                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    CompletableFuture<Void> append(byte op, int sku, int qty, long reservationId) {
+        ByteBuffer payload = ByteBuffer.allocate(RECORD_BYTES);
+        payload.put(op).putInt(sku).putInt(qty).putLong(reservationId).flip();
+        return writer.enqueue(this, payload, null);
+    }
+
+    CompletableFuture<Void> snapshot(byte[] state) {
+        return writer.enqueue(this, null, state);
+    }
+
+    static void await(CompletableFuture<Void> durable) {
+        if (durable == null) 
+            return;
+        try {
+            durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for inventory log", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Inventory log write failed", e.getCause());
+        }
+    }
+}
+
+// Singleton per data directory - one background thread writes the logs of all stores.
+// It takes everything queued since its last round, appends it, then forces each touched
+// file once, so concurrent mutations share one fsync (group commit).
+class InventoryLogWriter {
+    private static class PendingWrite {
+        final InventoryLog log;
+        final ByteBuffer payload;        // a log record, or
+        final byte[] snapshot;           // the store's state for snapshot.bin
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(InventoryLog log, ByteBuffer payload, byte[] snapshot) {
+            this.log      = log;
+            this.payload  = payload;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private Path root;
+    private LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private Map<String,InventoryLog> logs = new ConcurrentHashMap<>();
+    private Thread thread;
+    private ScheduledExecutorService snapshotTimer;
+    private volatile boolean running = true;
+
+    public InventoryLogWriter(Path root) throws IOException {
+        this.root = Files.createDirectories(root);
+        thread = new Thread(this::writeLoop, "inventory-log-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Opens (or creates) the store's log and rebuilds its stock from snapshot + log
+    public DbInventoryStore open(String storeName) throws IOException {
+        Path dir = Files.createDirectories(root.resolve(storeName));
+        long firstSegment = 0;
+        DbInventoryStore recovered = new DbInventoryStore();
+        Path snapshot = dir.resolve("snapshot.bin");
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                firstSegment = in.readLong();
+                recovered.readState(in);
+            }
+        }
+        long lastSegment = firstSegment;
+        for (long n = firstSegment; Files.exists(dir.resolve("log-" + n + ".bin")); n++) {
+            replaySegment(dir.resolve("log-" + n + ".bin"), recovered);
+            lastSegment = n;
+        }
+
+        InventoryLog log = new InventoryLog(storeName, dir, lastSegment, this);
+        DbInventoryStore store = new DbInventoryStore(log);
+        log.store = store;
+        // Move the rebuilt state into the durable store, then give back holds nobody owns anymore
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        recovered.writeState(new DataOutputStream(state));
+        store.readState(new DataInputStream(new ByteArrayInputStream(state.toByteArray())));
+        logs.put(storeName, log);
+        store.releaseOrphanedHolds();
+        return store;
+    }
+
+    // Replays complete frames, a torn or corrupt tail (crash mid-write) is cut off
+    private static void replaySegment(Path file, DbInventoryStore store) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer all = ByteBuffer.allocate((int) channel.size());
+            while (all.hasRemaining() && channel.read(all) >= 0) { }
+            all.flip();
+            long valid = 0;
+            CRC32 crc = new CRC32();
+            while (all.remaining() >= 8) {
+                int len  = all.getInt();
+                int sum  = all.getInt();
+                if (len != InventoryLog.RECORD_BYTES || all.remaining() < len) break;
+                byte[] payload = new byte[len];
+                all.get(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != sum) break;
+                ByteBuffer record = ByteBuffer.wrap(payload);
+                store.replay(record.get(), record.getInt(), record.getInt(), record.getLong());
+                valid = all.position();
+            }
+            if (valid < channel.size()) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    // Opens every store found under the root, each one recovered on its own thread
+    public Map<String,DbInventoryStore> recoverAll() throws IOException {
+        List<Path> storeDirs = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : dirs) storeDirs.add(dir);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(storeDirs.size(), 
+                                                            Runtime.getRuntime().availableProcessors())));
+        try {
+            Map<String,Future<DbInventoryStore>> pending = new TreeMap<>();
+            for (Path dir : storeDirs) {
+                String name = dir.getFileName().toString();
+                pending.put(name, pool.submit(() -> open(name)));
+            }
+            Map<String,DbInventoryStore> stores = new LinkedHashMap<>();
+            for (Map.Entry<String,Future<DbInventoryStore>> it : pending.entrySet()) {
+                stores.put(it.getKey(), it.getValue().get());
+            }
+            return stores;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during recovery", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Recovery failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    CompletableFuture<Void> enqueue(InventoryLog log, ByteBuffer payload, byte[] snapshot) {
+        PendingWrite write = new PendingWrite(log, payload, snapshot);
+        synchronized (this) {
+            if (!running) {
+                write.done.completeExceptionally(new IOException("Inventory log writer is closed"));
+            } else if (log.broken) {
+                write.done.completeExceptionally(new IOException("Inventory log of " + log.storeName + " is unusable"));
+            } else {
+                queue.add(write);     // under the lock, so close() cannot strand it
+            }
+        }
+        return write.done;
+    }
+
+    // Snapshot every store; each one's log restarts from an empty segment
+    public void snapshotAll() {
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (InventoryLog log : logs.values()) {
+            done.add(log.store.snapshot());
+        }
+        for (CompletableFuture<Void> d : done) {
+            InventoryLog.await(d);
+        }
+    }
+
+    public synchronized void startPeriodicSnapshots(long periodMillis) {
+        if (snapshotTimer != null) 
+            return;
+        snapshotTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "inventory-snapshots");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotTimer.scheduleWithFixedDelay(this::snapshotAll, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        Set<InventoryLog> touched = new HashSet<>();     // written since their last force
+        Set<InventoryLog> forced  = new HashSet<>();     // forced since the last acknowledgement
+        ByteBuffer header = ByteBuffer.allocate(8);
+        CRC32 crc = new CRC32();
+        while (running || !queue.isEmpty()) {
+            int acked = 0;
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch);
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingWrite write = batch.get(i);
+                    if (write.log.broken) {
+                        // Queued before the failure was seen; it must not land behind the gap
+                        write.done.completeExceptionally(new IOException("Inventory log of " 
+                                                         + write.log.storeName + " is unusable"));
+                        continue;
+                    }
+                    if (write.snapshot != null) {
+                        force(touched, forced);
+                        acked = acknowledge(batch, acked, i, forced, null);
+                        try {
+                            snapshot(write.log, write.snapshot);
+                            write.done.complete(null);
+                        } catch (IOException e) {
+                            write.done.completeExceptionally(e);     // the old snapshot and segments still hold
+                        }
+                        acked = i + 1;
+                        continue;
+                    }
+                    crc.reset();
+                    crc.update(write.payload.duplicate());
+                    header.clear();
+                    header.putInt(write.payload.remaining()).putInt((int) crc.getValue()).flip();
+                    touched.add(write.log);
+                    write.log.channel.write(new ByteBuffer[] {header, write.payload});
+                }
+                force(touched, forced);
+                acknowledge(batch, acked, batch.size(), forced, null);
+            } catch (IOException e) {
+                // Cut every unforced segment back to its last durable length, so recovery
+                // does not stop at a torn frame; acknowledge stops the logs that lost writes
+                for (InventoryLog log : touched) {
+                    try {
+                        log.channel.truncate(log.durableSize);
+                    } catch (IOException truncateFailed) {
+                        log.broken = true;
+                    }
+                }
+                touched.clear();
+                acknowledge(batch, acked, batch.size(), forced, e);
+            } catch (InterruptedException e) {
+                return;
+            }
+            batch.clear();
+            forced.clear();
+        }
+    }
+
+    // Completes writes [from, to): those whose segment got forced succeed, the rest get the
+    // error and stop their log first, so no later record can follow the lost one to disk
+    private static int acknowledge(List<PendingWrite> batch, int from, int to, 
+                                   Set<InventoryLog> forced, IOException error) {
+        for (int i = from; i < to; i++) {
+            PendingWrite write = batch.get(i);
+            if (error == null || (write.snapshot == null && forced.contains(write.log))) {
+                write.done.complete(null);
+            } else {
+                write.log.broken = true;
+                write.done.completeExceptionally(error);
+            }
+        }
+        forced.clear();
+        return to;
+    }
+
+    private static void force(Set<InventoryLog> touched, Set<InventoryLog> forced) throws IOException {
+        Iterator<InventoryLog> it = touched.iterator();
+        while (it.hasNext()) {
+            InventoryLog log = it.next();
+            log.channel.force(false);
+            log.durableSize = log.channel.size();
+            forced.add(log);
+            it.remove();
+        }
+    }
+
+    // Runs on the writer thread: state to snapshot.bin, then start a fresh segment and drop the old ones
+    // The next segment is opened before the snapshot is switched in, so a failure
+    // at any step leaves appends going to a segment that replay will read
+    private void snapshot(InventoryLog log, byte[] state) throws IOException {
+        long next = log.segment + 1;
+        FileChannel nextChannel = log.openSegment(next);
+        try {
+            Path tmp = log.dir.resolve("snapshot.tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeLong(next);
+                out.write(state);
+            }
+            try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                file.force(true);
+            }
+            Files.move(tmp, log.dir.resolve("snapshot.bin"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            nextChannel.close();     // the empty segment left behind replays as nothing
+            throw e;
+        }
+        log.channel.close();
+        log.channel     = nextChannel;
+        log.durableSize = nextChannel.size();
+        for (long n = log.segment; n >= 0 && Files.deleteIfExists(log.dir.resolve("log-" + n + ".bin")); n--) { }
+        log.segment = next;
+    }
+
+    public void close() {
+        synchronized (this) {
+            running = false;
+        }
+        try {
+            thread.join();
+            for (InventoryLog log : logs.values()) {
+                log.channel.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (snapshotTimer != null) {
+            snapshotTimer.shutdownNow();
+        }
+    }
+}
+
+// Lock-free store: every SKU has its own atomic counter, so checkouts touching
+// different SKUs never wait on each other and the same SKU only contends on a CAS
+class ConcurrentInventoryStore implements InventoryStore {
+    private static class StockCell {
+        final AtomicInteger available = new AtomicInteger(); // free to sell
+        final AtomicInteger reserved  = new AtomicInteger(); // held by open reservations
+    }
+
+    // SKU -> cell lookup. Never changed once published, a new SKU publishes a new table,
+    // so readers need no lock and nothing gets boxed.
+    private static class CellTable {
+        final IntIntOpenMap index;          // SKU -> position in cells
+        final StockCell[] cells;
+
+        CellTable(IntIntOpenMap index, StockCell[] cells) {
+            this.index = index;
+            this.cells = cells;
+        }
+    }
+
+    private volatile CellTable table;
+    private ConcurrentHashMap<Integer,Product> products;    // SKU -> Product
+
+    public ConcurrentInventoryStore() {
+        table    = new CellTable(new IntIntOpenMap(16), new StockCell[0]);
+        products = new ConcurrentHashMap<>();
+    }
+
+    private StockCell cell(int sku) {
+        CellTable t = table;
+        int i = t.index.get(sku, -1);
+        return i < 0 ? null : t.cells[i];
+    }
+
+    private synchronized StockCell cellOrCreate(int sku) {
+        StockCell existing = cell(sku);
+        if (existing != null) {
+            return existing;
+        }
+        IntIntOpenMap index = table.index.copy();
+        StockCell[] cells   = Arrays.copyOf(table.cells, table.cells.length + 1);
+        cells[cells.length - 1] = new StockCell();
+        index.put(sku, cells.length - 1);
+        table = new CellTable(index, cells);
+        return cells[cells.length - 1];
+    }
+
+    @Override
+    public void addProduct(Product prod, int qty) {
+        products.putIfAbsent(prod.getSku(), prod);
+        cellOrCreate(prod.getSku()).available.addAndGet(qty);
+    }
+
+    @Override
+    public void removeProduct(int sku, int qty) {
+        StockCell cell = cell(sku);
+        if (cell != null) {
+            take(cell, qty);
+        }
+    }
+
+    // Takes up to qty from the free stock, returns how much was actually taken
+    private static int take(StockCell cell, int qty) {
+        while (true) {
+            int current = cell.available.get();
+            int taken   = Math.min(current, qty);
+            if (taken <= 0) {
+                return 0;
+            }
+            if (cell.available.compareAndSet(current, current - taken)) {
+                return taken;
+            }
+        }
+    }
+
+    @Override
+    public int checkStock(int sku) {
+        StockCell cell = cell(sku);
+        return cell == null ? 0 : cell.available.get();
+    }
+
+    public int reservedStock(int sku) {
+        StockCell cell = cell(sku);
+        return cell == null ? 0 : cell.reserved.get();
+    }
+
+    @Override
+    public List<Product> listAvailableProducts() {
+        List<Product> available = new ArrayList<>();
+        for (Map.Entry<Integer,Product> it : products.entrySet()) {
+            if (checkStock(it.getKey()) > 0) {
+                available.add(it.getValue());
+            }
+        }
+        return available;
+    }
+
+    @Override
+    public Reservation reserve(Map<Integer,Integer> wanted, long ttlMillis) {
+        Map<Integer,Integer> held = new LinkedHashMap<>();
+        for (Map.Entry<Integer,Integer> it : wanted.entrySet()) {
+            StockCell cell = cell(it.getKey());
+            if (cell == null) continue;
+            int taken = take(cell, it.getValue());
+            if (taken > 0) {
+                cell.reserved.addAndGet(taken);
+                held.put(it.getKey(), taken);
+            }
+        }
+        return Reservation.open(this, held, ttlMillis);
+    }
+
+    @Override
+    public boolean commit(Reservation reservation) {
+        if (!reservation.markCommitted()) {
+            return false;
+        }
+        for (Map.Entry<Integer,Integer> it : reservation.getItems().entrySet()) {
+            cell(it.getKey()).reserved.addAndGet(-it.getValue());
+        }
+        return true;
+    }
+
+    @Override
+    public void release(Reservation reservation) {
+        if (!reservation.markReleased()) 
+            return;
+        for (Map.Entry<Integer,Integer> it : reservation.getItems().entrySet()) {
+            StockCell cell = cell(it.getKey());
+            cell.reserved.addAndGet(-it.getValue());
+            cell.available.addAndGet(it.getValue());
+        }
+    }
+}
+
+/////////////////////////////////////////////
+// Reservation & ReservationReaper
+/////////////////////////////////////////////
+
+// Stock held for one checkout at one store. Exactly one of commit / release /
+// expiry wins, decided by a CAS on the state.
+class Reservation {
+    private static final int ACTIVE = 0, COMMITTED = 1, RELEASED = 2, CLAIMED = 3;
+    private static AtomicLong nextId = new AtomicLong(1);
+
+    private long id;
+    private InventoryStore store;
+    private Map<Integer,Integer> items;     // SKU -> held quantity
+    private long expiresAtNanos;
+    private AtomicInteger state = new AtomicInteger(ACTIVE);
+    volatile int wheelSlot = -1;            // where ReservationReaper keeps it, -1 = not tracked
+
+    private Reservation(InventoryStore store, Map<Integer,Integer> items, long ttlMillis) {
+        this.id    = nextId.getAndIncrement();
+        this.store = store;
+        this.items = Collections.unmodifiableMap(items);
+        this.expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    // Called by stores once the stock is held; non-empty holds are watched for expiry
+    static Reservation open(InventoryStore store, Map<Integer,Integer> items, long ttlMillis) {
+        Reservation reservation = new Reservation(store, items, ttlMillis);
+        if (!items.isEmpty()) {
+            ReservationReaper.getInstance().track(reservation);
+        }
+        return reservation;
+    }
+
+    // A claimed hold can no longer expire; only its owner settles it from here
+    public boolean claim() {
+        return state.compareAndSet(ACTIVE, CLAIMED);
+    }
+
+    // Settled reservations leave the reaper straight away instead of waiting out their TTL
+
+    boolean markCommitted() {
+        if (!state.compareAndSet(ACTIVE, COMMITTED) && !state.compareAndSet(CLAIMED, COMMITTED)) 
+            return false;
+        ReservationReaper.getInstance().untrack(this);
+        return true;
+    }
+
+    boolean markReleased() {
+        if (!state.compareAndSet(ACTIVE, RELEASED) && !state.compareAndSet(CLAIMED, RELEASED)) 
+            return false;
+        ReservationReaper.getInstance().untrack(this);
+        return true;
+    }
+
+    public boolean isActive() {
+        return state.get() == ACTIVE;
+    }
+
+    public long getId() {
+        return this.id;
+    }
+
+    public InventoryStore getStore() {
+        return this.store;
+    }
+
+    public Map<Integer,Integer> getItems() {
+        return this.items;
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    public long getExpiresAtNanos() {
+        return this.expiresAtNanos;
+    }
+}
+
+// Singleton - one background thread gives back stock of reservations that
+// were neither committed nor released in time. Reservations sit in a hashed
+// timing wheel: one concurrent set per 50 ms tick, so tracking and untracking
+// are a single set add/remove with no shared lock, and the thread only looks
+// at the slot whose tick just passed. TTLs longer than one turn of the wheel
+// simply stay in their slot until a later pass finds them due.
+class ReservationReaper {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int WHEEL_SIZE  = 512;                 // ~25 s per turn
+
+    private static ReservationReaper instance;
+    private final List<Set<Reservation>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private volatile long processedTick;                        // every tick up to here has been swept
+    private AtomicLong expiredCount = new AtomicLong();
+    private AtomicLong failedCount  = new AtomicLong();
+
+    private ReservationReaper() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(ConcurrentHashMap.newKeySet());
+        }
+        processedTick = System.nanoTime() / TICK_NANOS;
+        Thread reaper = new Thread(() -> {
+            while (true) {
+                long nowTick = System.nanoTime() / TICK_NANOS;
+                while (processedTick < nowTick) {
+                    sweep(processedTick + 1);
+                    processedTick++;
+                }
+                LockSupport.parkNanos(TICK_NANOS);
+                if (Thread.interrupted()) 
+                    return;
+            }
+        }, "reservation-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    public static synchronized ReservationReaper getInstance() {
+        if (instance == null) {
+            instance = new ReservationReaper();
+        }
+        return instance;
+    }
+
+    private void sweep(long tick) {
+        long now = System.nanoTime();
+        Set<Reservation> slot = wheel.get((int) (tick & (WHEEL_SIZE - 1)));
+        for (Reservation reservation : slot) {
+            if (reservation.getExpiresAtNanos() - now > 0) 
+                continue;       // due on a later turn
+            slot.remove(reservation);
+            reservation.wheelSlot = -1;
+            if (!reservation.isActive()) 
+                continue;
+            try {
+                reservation.getStore().release(reservation);
+                expiredCount.incrementAndGet();
+                EventSink.getInstance().emit(EventType.RESERVATION_REAPED, null, null, 
+                                             reservation.getId(), 0, 0, 0);
+            } catch (RuntimeException e) {
+                // One store failing to release (e.g. its log is down) must not stop expiry for
+                // the rest; that store is stopped, and the hold comes back as an orphan when it is reopened
+                failedCount.incrementAndGet();
+            }
+        }
+    }
+
+    // A reservation already due lands in the next slot to be swept. If the sweep
+    // overtakes it while it is being added, it is picked up one turn later.
+    public void track(Reservation reservation) {
+        long tick = Math.max(reservation.getExpiresAtNanos() / TICK_NANOS, processedTick + 1);
+        int slot  = (int) (tick & (WHEEL_SIZE - 1));
+        reservation.wheelSlot = slot;
+        wheel.get(slot).add(reservation);
+    }
+
+    public void untrack(Reservation reservation) {
+        int slot = reservation.wheelSlot;
+        if (slot >= 0) {
+            wheel.get(slot).remove(reservation);
+            reservation.wheelSlot = -1;
+        }
+    }
+
+    public int getTrackedCount() {
+        int count = 0;
+        for (Set<Reservation> slot : wheel) {
+            count += slot.size();
+        }
+        return count;
+    }
+
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+}
+
+/////////////////////////////////////////////
+// InventoryManager 
+/////////////////////////////////////////////
+
+class InventoryManager {
+    private InventoryStore store;
+
+    public InventoryManager(InventoryStore store) {
+        this.store = store;
+    }
+
+    public void addStock(int sku, int qty) {
+        Product prod = ProductFactory.createProduct(sku);
+        store.addProduct(prod, qty);
+        EventSink.getInstance().emit(EventType.STOCK_ADDED, null, null, sku, qty, 0, 0);
+    }
+
+    public void removeStock(int sku, int qty) {
+        store.removeProduct(sku, qty);
+    }
+
+    public int checkStock(int sku) {
+        return store.checkStock(sku);
+    }
+
+    public List<Product> getAvailableProducts() {
+        return store.listAvailableProducts();
+    }
+
+    public Reservation reserve(Map<Integer,Integer> wanted, long ttlMillis) {
+        return store.reserve(wanted, ttlMillis);
+    }
+
+    public boolean commit(Reservation reservation) {
+        return store.commit(reservation);
+    }
+
+    public void release(Reservation reservation) {
+        store.release(reservation);
+    }
+}
+
+/////////////////////////////////////////////
+// Replenishment Strategy (Strategy Pattern)
+/////////////////////////////////////////////
+
+interface ReplenishStrategy {
+    void replenish(InventoryManager manager, Map<Integer,Integer> itemsToReplenish);
+
+    // How much to order when a SKU drops to currentQty, 0 = no refill needed
+    default int refillQuantity(int sku, int currentQty) {
+        return 0;
+    }
+}
+
+class ThresholdReplenishStrategy implements ReplenishStrategy {
+    private int threshold;
+    private int reorderQty;
+
+    public ThresholdReplenishStrategy(int threshold) {
+        this(threshold, 10);
+    }
+
+    public ThresholdReplenishStrategy(int threshold, int reorderQty) {
+        this.threshold  = threshold;
+        this.reorderQty = reorderQty;
+    }
+
+    @Override
+    public int refillQuantity(int sku, int currentQty) {
+        return currentQty < threshold ? reorderQty : 0;
+    }
+
+    @Override
+    public void replenish(InventoryManager manager, Map<Integer,Integer> itemsToReplenish) {
+        EventSink events = EventSink.getInstance();
+        events.emit(EventType.THRESHOLD_CHECK);
+        for (Map.Entry<Integer,Integer> it : itemsToReplenish.entrySet()) {
+            int sku       = it.getKey();
+            int qtyToAdd  = it.getValue();
+            int current   = manager.checkStock(sku);
+            if (current < threshold) {
+                manager.addStock(sku, qtyToAdd);
+                events.emit(EventType.THRESHOLD_REFILL, null, null, sku, current, qtyToAdd, 0);
+            }
+        }
+    }
+}
+
+// Tops every SKU back up to its par level, itemsToReplenish is SKU -> par level.
+// Meant to be run by ReplenishmentScheduler.scheduleWeekly.
+class WeeklyReplenishStrategy implements ReplenishStrategy {
+    public WeeklyReplenishStrategy() {}
+
+    @Override
+    public void replenish(InventoryManager manager, Map<Integer,Integer> itemsToReplenish) {
+        EventSink events = EventSink.getInstance();
+        events.emit(EventType.WEEKLY_CHECK);
+        for (Map.Entry<Integer,Integer> it : itemsToReplenish.entrySet()) {
+            int sku      = it.getKey();
+            int current  = manager.checkStock(sku);
+            int qtyToAdd = it.getValue() - current;
+            if (qtyToAdd > 0) {
+                manager.addStock(sku, qtyToAdd);
+                events.emit(EventType.WEEKLY_TOPUP, null, null, sku, current, it.getValue(), 0);
+            }
+        }
+    }
+}
+
+/////////////////////////////////////////////
+// Demand Forecasting
+/////////////////////////////////////////////
+
+// Streaming demand forecast per (store, SKU). Demand is counted in fixed time buckets
+// and smoothed with an exponentially weighted mean and variance, updated in O(1) on
+// every order - order history is never rescanned.
+class DemandForecaster {
+    private static DemandForecaster instance;
+
+    private static class DemandState {
+        long bucket = -1;    // bucket the running count belongs to, -1 before the first order
+        double current;      // demand so far in that bucket
+        double mean;         // smoothed demand per bucket, closed buckets only
+        double variance;
+        boolean seeded;      // false until the first bucket closes
+    }
+
+    private long bucketMillis;
+    private double alpha;
+    private ConcurrentHashMap<String,DemandState> states = new ConcurrentHashMap<>();   // "store#sku" -> state
+
+    public DemandForecaster(long bucketMillis, double alpha) {
+        this.bucketMillis = bucketMillis;
+        this.alpha        = alpha;
+    }
+
+    public static synchronized DemandForecaster getInstance() {
+        if (instance == null) {
+            instance = new DemandForecaster(TimeUnit.HOURS.toMillis(1), 0.3);
+        }
+        return instance;
+    }
+
+    public void recordDemand(String storeName, int sku, int qty) {
+        recordDemand(storeName, sku, qty, System.currentTimeMillis());
+    }
+
+    public void recordDemand(String storeName, int sku, int qty, long atMillis) {
+        DemandState state = states.computeIfAbsent(storeName + "#" + sku, k -> new DemandState());
+        synchronized (state) {
+            roll(state, atMillis / bucketMillis);
+            state.current += qty;
+        }
+    }
+
+    // Close every bucket between state.bucket and nowBucket (the empty ones count as 0)
+    private void roll(DemandState state, long nowBucket) {
+        if (state.bucket < 0) {
+            state.bucket = nowBucket;
+            return;
+        }
+        long closed = Math.min(nowBucket - state.bucket, 64);   // after 64 idle buckets the history is ~gone anyway
+        for (long b = 0; b < closed; b++) {
+            double observed = (b == 0) ? state.current : 0;
+            if (!state.seeded) {
+                state.mean   = observed;
+                state.seeded = true;
+            } else {
+                double diff = observed - state.mean;
+                state.mean     += alpha * diff;
+                state.variance  = (1 - alpha) * (state.variance + alpha * diff * diff);
+            }
+        }
+        if (nowBucket > state.bucket) {
+            state.bucket  = nowBucket;
+            state.current = 0;
+        }
+    }
+
+    // Expected demand per bucket, blending the bucket in progress in
+    public double forecast(String storeName, int sku) {
+        DemandState state = states.get(storeName + "#" + sku);
+        if (state == null) 
+            return 0;
+        synchronized (state) {
+            roll(state, System.currentTimeMillis() / bucketMillis);
+            return state.seeded ? (1 - alpha) * state.mean + alpha * state.current : alpha * state.current;
+        }
+    }
+
+    // Spread of demand per bucket. Never below Poisson noise, so sparse SKUs still get some buffer.
+    public double stdDev(String storeName, int sku) {
+        DemandState state = states.get(storeName + "#" + sku);
+        if (state == null) 
+            return 0;
+        synchronized (state) {
+            return Math.sqrt(Math.max(state.variance, forecast(storeName, sku)));
+        }
+    }
+}
+
+// Sizes refills from forecast demand: reorder when stock cannot cover the lead time
+// at the target fill rate, then order up to what covers lead time + one review period.
+class ForecastReplenishStrategy implements ReplenishStrategy {
+    private String storeName;
+    private double z;                   // safety factor for the fill rate
+    private double leadTimeBuckets;
+    private double reviewBuckets;
+    private DemandForecaster forecaster;
+
+    public ForecastReplenishStrategy(String storeName, double targetFillRate) {
+        this(storeName, targetFillRate, 1, 1, DemandForecaster.getInstance());
+    }
+
+    public ForecastReplenishStrategy(String storeName, double targetFillRate, double leadTimeBuckets,
+                                     double reviewBuckets, DemandForecaster forecaster) {
+        this.storeName       = storeName;
+        this.z               = inverseNormal(targetFillRate);
+        this.leadTimeBuckets = leadTimeBuckets;
+        this.reviewBuckets   = reviewBuckets;
+        this.forecaster      = forecaster;
+    }
+
+    private int reorderPoint(int sku) {
+        double mean  = forecaster.forecast(storeName, sku);
+        double sigma = forecaster.stdDev(storeName, sku);
+        return (int) Math.ceil(mean * leadTimeBuckets + z * sigma * Math.sqrt(leadTimeBuckets));
+    }
+
+    private int orderUpTo(int sku) {
+        double horizon = leadTimeBuckets + reviewBuckets;
+        double mean    = forecaster.forecast(storeName, sku);
+        double sigma   = forecaster.stdDev(storeName, sku);
+        return (int) Math.ceil(mean * horizon + z * sigma * Math.sqrt(horizon));
+    }
+
+    @Override
+    public int refillQuantity(int sku, int currentQty) {
+        if (currentQty >= reorderPoint(sku)) 
+            return 0;
+        return Math.max(0, orderUpTo(sku) - currentQty);
+    }
+
+    @Override
+    public void replenish(InventoryManager manager, Map<Integer,Integer> itemsToReplenish) {
+        EventSink events = EventSink.getInstance();
+        events.emit(EventType.FORECAST_CHECK);
+        for (int sku : itemsToReplenish.keySet()) {
+            int current  = manager.checkStock(sku);
+            int target   = orderUpTo(sku);
+            if (current < target) {
+                manager.addStock(sku, target - current);
+                events.emit(EventType.FORECAST_TOPUP, null, null, sku, current, target, 
+                            forecaster.forecast(storeName, sku));
+            }
+        }
+    }
+
+    // Standard normal quantile (Abramowitz & Stegun 26.2.23, error < 4.5e-4)
+    static double inverseNormal(double p) {
+        if (!(p > 0 && p < 1)) 
+            throw new IllegalArgumentException("Fill rate must be between 0 and 1, got " + p);
+        if (p == 0.5) 
+            return 0.0;
+        if (p < 0.5) 
+            return -inverseNormal(1 - p);
+        double t = Math.sqrt(-2 * Math.log(1 - p));
+        return t - (2.515517 + 0.802853 * t + 0.010328 * t * t) 
+                 / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+    }
+}
+
+/////////////////////////////////////////////
+// DarkStore (formerly Warehouse)
+/////////////////////////////////////////////
+
+// Observer - told whenever stock of a SKU goes down
+interface StockListener {
+    void onStockDecrease(DarkStore store, int sku, int remainingQty);
+}
+
+class DarkStore {
+    private String name;
+    private double x, y;                       // location coordinates
+    private InventoryManager inventoryManager;
+    private ReplenishStrategy replenishStrategy;
+    private volatile StockListener stockListener;
+
+    public DarkStore(String n, double x_coord, double y_coord) {
+        // We could have made another factory called InventoryStoreFactory to get
+        // DbInventoryStore by enum and hence make it loosely coupled.
+        this(n, x_coord, y_coord, new ConcurrentInventoryStore());
+    }
+
+    public DarkStore(String n, double x_coord, double y_coord, InventoryStore store) {
+        name = n;
+        x    = x_coord;
+        y    = y_coord;
+        inventoryManager = new InventoryManager(store);
+    }
+
+    public double distanceTo(double ux, double uy) {
+        return Math.sqrt((x - ux)*(x - ux) + (y - uy)*(y - uy));
+    }
+
+    public void runReplenishment(Map<Integer,Integer> itemsToReplenish) {
+        runReplenishment(replenishStrategy, itemsToReplenish);
+    }
+
+    public void runReplenishment(ReplenishStrategy strategy, Map<Integer,Integer> itemsToReplenish) {
+        if (strategy != null) {
+            strategy.replenish(inventoryManager, itemsToReplenish);
+            // Strategies stock up through the InventoryManager, so refresh search for what they touched
+            for (int sku : itemsToReplenish.keySet()) {
+                ProductSearchIndex.getInstance().updateAvailability(this, sku);
+            }
+        }
+    }
+
+    // Delegation Methods
+    public List<Product> getAllProducts() {
+        return inventoryManager.getAvailableProducts();
+    }
+
+    public int checkStock(int sku) {
+        return inventoryManager.checkStock(sku);
+    }
+
+    public void removeStock(int sku, int qty) {
+        inventoryManager.removeStock(sku, qty);
+        stockDecreased(sku);
+    }
+
+    public void addStock(int sku, int qty) {
+        inventoryManager.addStock(sku, qty);
+        ProductSearchIndex.getInstance().updateAvailability(this, sku);
+    }
+
+    public Reservation reserve(Map<Integer,Integer> wanted, long ttlMillis) {
+        return inventoryManager.reserve(wanted, ttlMillis);
+    }
+
+    public boolean commit(Reservation reservation) {
+        if (!inventoryManager.commit(reservation)) {
+            return false;
+        }
+        for (int sku : reservation.getItems().keySet()) {
+            stockDecreased(sku);
+        }
+        return true;
+    }
+
+    private void stockDecreased(int sku) {
+        int remaining = inventoryManager.checkStock(sku);
+        ProductSearchIndex.getInstance().updateAvailability(this, sku);
+        StockListener listener = stockListener;
+        if (listener != null) {
+            listener.onStockDecrease(this, sku, remaining);
+        }
+    }
+
+    public void release(Reservation reservation) {
+        inventoryManager.release(reservation);
+        for (int sku : reservation.getItems().keySet()) {
+            ProductSearchIndex.getInstance().updateAvailability(this, sku);
+        }
+    }
+
+    // Getters & Setters
+    public void setReplenishStrategy(ReplenishStrategy strategy) {
+        this.replenishStrategy = strategy;
+    }
+
+    public ReplenishStrategy getReplenishStrategy() {
+        return this.replenishStrategy;
+    }
+
+    public void setStockListener(StockListener listener) {
+        this.stockListener = listener;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public double getXCoordinate() {
+        return this.x;
+    }
+
+    public double getYCoordinate() {
+        return this.y;
+    }
+
+    public InventoryManager getInventoryManager() {
+        return this.inventoryManager;
+    }
+}
+
+/////////////////////////////////////////////
+// ReplenishmentScheduler (Singleton)
+/////////////////////////////////////////////
+
+// Cron-like "at HH:MM on these days" schedule
+class CronSchedule {
+    private EnumSet<DayOfWeek> days;
+    private LocalTime time;
+
+    public CronSchedule(EnumSet<DayOfWeek> days, LocalTime time) {
+        this.days = days;
+        this.time = time;
+    }
+
+    public static CronSchedule weekly(DayOfWeek day, LocalTime time) {
+        return new CronSchedule(EnumSet.of(day), time);
+    }
+
+    public LocalDateTime nextRunAfter(LocalDateTime now) {
+        LocalDateTime candidate = now.toLocalDate().atTime(time);
+        if (!candidate.isAfter(now)) {
+            candidate = candidate.plusDays(1);
+        }
+        while (!days.contains(candidate.getDayOfWeek())) {
+            candidate = candidate.plusDays(1);
+        }
+        return candidate;
+    }
+}
+
+// Listens to stock going down at every store. SKUs that cross their threshold are
+// queued without blocking the order, and a background thread refills them in
+// batches, one batch per supplier per window.
+class ReplenishmentScheduler implements StockListener {
+    private static final String DEFAULT_SUPPLIER = "DefaultSupplier";
+    private static ReplenishmentScheduler instance;
+
+    private static class RefillRequest {
+        final DarkStore store;
+        final int sku;
+        final int qty;
+
+        RefillRequest(DarkStore store, int sku, int qty) {
+            this.store = store;
+            this.sku   = sku;
+            this.qty   = qty;
+        }
+    }
+
+    private ScheduledExecutorService executor;
+    private ConcurrentLinkedQueue<RefillRequest> queue = new ConcurrentLinkedQueue<>();
+    private Set<String> queued = ConcurrentHashMap.newKeySet();            // "store#sku" already waiting
+    private ConcurrentHashMap<Integer,String> supplierOfSku = new ConcurrentHashMap<>();
+    private AtomicLong batchesSent = new AtomicLong();
+
+    private ReplenishmentScheduler(long batchWindowMillis) {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replenishment-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::drain, batchWindowMillis, batchWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized ReplenishmentScheduler getInstance() {
+        if (instance == null) {
+            instance = new ReplenishmentScheduler(200);
+        }
+        return instance;
+    }
+
+    public void registerSupplier(String supplier, int... skus) {
+        for (int sku : skus) {
+            supplierOfSku.put(sku, supplier);
+        }
+    }
+
+    public void watch(DarkStore store) {
+        store.setStockListener(this);
+    }
+
+    // Runs on the order's thread, so only a check and a queue offer
+    @Override
+    public void onStockDecrease(DarkStore store, int sku, int remainingQty) {
+        ReplenishStrategy strategy = store.getReplenishStrategy();
+        if (strategy == null) 
+            return;
+        int qty = strategy.refillQuantity(sku, remainingQty);
+        if (qty > 0 && queued.add(store.getName() + "#" + sku)) {
+            queue.offer(new RefillRequest(store, sku, qty));
+        }
+    }
+
+    private void drain() {
+        // supplier -> store -> SKU -> qty
+        Map<String,Map<DarkStore,Map<Integer,Integer>>> batches = new TreeMap<>();
+        RefillRequest request;
+        while ((request = queue.poll()) != null) {
+            String supplier = supplierOfSku.getOrDefault(request.sku, DEFAULT_SUPPLIER);
+            batches.computeIfAbsent(supplier, k -> new LinkedHashMap<>())
+                   .computeIfAbsent(request.store, k -> new LinkedHashMap<>())
+                   .merge(request.sku, request.qty, Integer::sum);
+        }
+        for (Map.Entry<String,Map<DarkStore,Map<Integer,Integer>>> batch : batches.entrySet()) {
+            EventSink.getInstance().emit(EventType.REPLENISH_BATCH, batch.getKey(), null, 
+                                         batch.getValue().size(), 0, 0, 0);
+            for (Map.Entry<DarkStore,Map<Integer,Integer>> perStore : batch.getValue().entrySet()) {
+                try {
+                    perStore.getKey().runReplenishment(perStore.getValue());
+                } catch (RuntimeException e) {
+                    EventSink.getInstance().emit(EventType.REPLENISH_FAILED, perStore.getKey().getName(), 
+                                                 e.getMessage(), 0, 0, 0, 0);
+                } finally {
+                    // Only now may a fresh drop queue this SKU again, otherwise it is ordered twice
+                    for (Integer sku : perStore.getValue().keySet()) {
+                        queued.remove(perStore.getKey().getName() + "#" + sku);
+                    }
+                }
             }
+            batchesSent.incrementAndGet();
         }
     }
-}
 
-class WeeklyReplenishStrategy implements ReplenishStrategy {
-    public WeeklyReplenishStrategy() {}
+    // Runs the strategy through the store at every time the schedule fires, on the scheduler thread
+    public void scheduleWeekly(DarkStore store, ReplenishStrategy strategy, 
+                               Map<Integer,Integer> items, CronSchedule schedule) {
+        LocalDateTime next = schedule.nextRunAfter(LocalDateTime.now());
+        long delay = Duration.between(LocalDateTime.now(), next).toMillis();
+        executor.schedule(() -> {
+            try {
+                store.runReplenishment(strategy, items);
+            } catch (RuntimeException e) {
+                EventSink.getInstance().emit(EventType.REPLENISH_FAILED, store.getName(), e.getMessage(), 0, 0, 0, 0);
+            } finally {
+                // Re-arm from the wall clock each time, so DST changes do not drift the schedule
+                scheduleWeekly(store, strategy, items, schedule);
+            }
+        }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        EventSink.getInstance().emit(EventType.REPLENISH_SCHEDULED, store.getName(), next.toString(), 0, 0, 0, 0);
+    }
 
-    @Override
-    public void replenish(InventoryManager manager, Map<Integer,Integer> itemsToReplenish) {
-        System.out.println("[WeeklyReplenish] Weekly replenishment triggered for inventory.");
+    // Handles whatever is queued right now and waits for it, for demos and shutdown
+    public void flush() {
+        try {
+            executor.submit(this::drain).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public long getBatchesSent() {
+        return batchesSent.get();
     }
 }
 
 /////////////////////////////////////////////
-// DarkStore (formerly Warehouse)
+// GridIndex (uniform grid over x/y)
 /////////////////////////////////////////////
 
-class DarkStore {
-    private String name;
-    private double x, y;                       // location coordinates
-    private InventoryManager inventoryManager;
-    private ReplenishStrategy replenishStrategy;
-
-    public DarkStore(String n, double x_coord, double y_coord) {
-        name = n;
-        x    = x_coord;
-        y    = y_coord;
-
-        // We could have made another factory called InventoryStoreFactory to get
-        // DbInventoryStore by enum and hence make it loosely coupled.
-        inventoryManager = new InventoryManager(new DbInventoryStore());
-    }
-
-    public double distanceTo(double ux, double uy) {
-        return Math.sqrt((x - ux)*(x - ux) + (y - uy)*(y - uy));
-    }
-
-    public void runReplenishment(Map<Integer,Integer> itemsToReplenish) {
-        if (replenishStrategy != null) {
-            replenishStrategy.replenish(inventoryManager, itemsToReplenish);
+// Buckets points into square cells so a lookup only looks at the cells around
+// the query point instead of at every registered point. Not thread safe.
+class GridIndex<T> {
+    private static class Entry<T> {
+        final T item;
+        final double x, y;
+
+        Entry(T item, double x, double y) {
+            this.item = item;
+            this.x    = x;
+            this.y    = y;
         }
     }
 
-    // Delegation Methods
-    public List<Product> getAllProducts() {
-        return inventoryManager.getAvailableProducts();
+    private final double cellSize;
+    private Map<Long,List<Entry<T>>> cells;   // cell key -> points in that cell
+    private Map<T,Entry<T>> entries;          // item -> where it was inserted
+
+    public GridIndex(double cellSize) {
+        this.cellSize = cellSize;
+        cells   = new HashMap<>();
+        entries = new HashMap<>();
     }
 
-    public int checkStock(int sku) {
-        return inventoryManager.checkStock(sku);
+    private int cellOf(double coord) {
+        return (int) Math.floor(coord / cellSize);
     }
 
-    public void removeStock(int sku, int qty) {
-        inventoryManager.removeStock(sku, qty);
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
     }
 
-    public void addStock(int sku, int qty) {
-        inventoryManager.addStock(sku, qty);
+    public void insert(T item, double x, double y) {
+        remove(item);
+        Entry<T> e = new Entry<>(item, x, y);
+        entries.put(item, e);
+        cells.computeIfAbsent(key(cellOf(x), cellOf(y)), k -> new ArrayList<>()).add(e);
     }
 
-    // Getters & Setters
-    public void setReplenishStrategy(ReplenishStrategy strategy) {
-        this.replenishStrategy = strategy;
+    public boolean remove(T item) {
+        Entry<T> e = entries.remove(item);
+        if (e == null) {
+            return false;
+        }
+        long k = key(cellOf(e.x), cellOf(e.y));
+        List<Entry<T>> cell = cells.get(k);
+        cell.remove(e);
+        if (cell.isEmpty()) {
+            cells.remove(k);
+        }
+        return true;
     }
 
-    public String getName() {
-        return this.name;
+    public int size() {
+        return entries.size();
     }
 
-    public double getXCoordinate() {
-        return this.x;
+    // Everything within radius of (x, y), closest first
+    public List<T> withinRadius(double x, double y, double radius) {
+        List<Pair<Double,T>> found = new ArrayList<>();
+        int minCx = cellOf(x - radius), maxCx = cellOf(x + radius);
+        int minCy = cellOf(y - radius), maxCy = cellOf(y + radius);
+        for (int cx = minCx; cx <= maxCx; cx++) {
+            for (int cy = minCy; cy <= maxCy; cy++) {
+                List<Entry<T>> cell = cells.get(key(cx, cy));
+                if (cell == null) continue;
+                for (Entry<T> e : cell) {
+                    double d = Math.hypot(e.x - x, e.y - y);
+                    if (d <= radius) {
+                        found.add(new Pair<>(d, e.item));
+                    }
+                }
+            }
+        }
+        return sortedItems(found);
     }
 
-    public double getYCoordinate() {
-        return this.y;
+    // Up to k closest points within maxDistance, closest first. Searches outwards ring by
+    // ring and stops once no unvisited cell can hold anything closer than what was found.
+    public List<T> nearest(double x, double y, int k, double maxDistance) {
+        if (k <= 0) 
+            return new ArrayList<>();
+        PriorityQueue<Pair<Double,T>> best =
+            new PriorityQueue<>(Comparator.comparing((Pair<Double,T> p) -> p.getKey()).reversed());
+        int qx = cellOf(x), qy = cellOf(y);
+        int seen = 0;
+        for (int ring = 0; seen < entries.size(); ring++) {
+            // Anything outside rings 0..ring-1 is at least (ring - 1) cells away
+            double minOutside = (ring - 1) * cellSize;
+            if (minOutside > maxDistance || (best.size() == k && minOutside >= best.peek().getKey())) {
+                break;
+            }
+            for (int cx = qx - ring; cx <= qx + ring; cx++) {
+                boolean edgeColumn = (cx == qx - ring || cx == qx + ring);
+                for (int cy = qy - ring; cy <= qy + ring; cy += edgeColumn ? 1 : 2 * ring) {
+                    List<Entry<T>> cell = cells.get(key(cx, cy));
+                    if (cell != null) {
+                        for (Entry<T> e : cell) {
+                            seen++;
+                            double d = Math.hypot(e.x - x, e.y - y);
+                            if (d > maxDistance) continue;
+                            if (best.size() < k) {
+                                best.add(new Pair<>(d, e.item));
+                            } else if (d < best.peek().getKey()) {
+                                best.poll();
+                                best.add(new Pair<>(d, e.item));
+                            }
+                        }
+                    }
+                    if (ring == 0) break;
+                }
+            }
+        }
+        return sortedItems(new ArrayList<>(best));
     }
 
-    public InventoryManager getInventoryManager() {
-        return this.inventoryManager;
+    private static <T> List<T> sortedItems(List<Pair<Double,T>> found) {
+        found.sort(Comparator.comparing(Pair::getKey));
+        List<T> result = new ArrayList<>();
+        for (Pair<Double,T> p : found) {
+            result.add(p.getValue());
+        }
+        return result;
     }
 }
 
@@ -273,13 +2313,14 @@ class DarkStore {
 
 class DarkStoreManager {
     private static DarkStoreManager instance;
-    private List<DarkStore> darkStores;
+    private GridIndex<DarkStore> darkStores;   // cells of 5 KM, the usual delivery radius
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
     private DarkStoreManager() {
-        darkStores = new ArrayList<>();
+        darkStores = new GridIndex<>(5.0);
     }
 
-    public static DarkStoreManager getInstance() {
+    public static synchronized DarkStoreManager getInstance() {
         if (instance == null) {
             instance = new DarkStoreManager();
         }
@@ -287,23 +2328,42 @@ class DarkStoreManager {
     }
 
     public void registerDarkStore(DarkStore ds) {
-        darkStores.add(ds);
+        lock.writeLock().lock();
+        try {
+            darkStores.insert(ds, ds.getXCoordinate(), ds.getYCoordinate());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean unregisterDarkStore(DarkStore ds) {
+        lock.writeLock().lock();
+        try {
+            ProductSearchIndex.getInstance().removeStore(ds);
+            return darkStores.remove(ds);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
+    // All stores within maxDistance, closest first
     public List<DarkStore> getNearbyDarkStores(double ux, double uy, double maxDistance) {
-        List<Pair<Double,DarkStore>> distList = new ArrayList<>();
-        for (DarkStore ds : darkStores) {
-            double d = ds.distanceTo(ux, uy);
-            if (d <= maxDistance) {
-                distList.add(new Pair<>(d, ds));
-            }
+        lock.readLock().lock();
+        try {
+            return darkStores.withinRadius(ux, uy, maxDistance);
+        } finally {
+            lock.readLock().unlock();
         }
-        distList.sort(Comparator.comparing(Pair::getKey));
-        List<DarkStore> result = new ArrayList<>();
-        for (Pair<Double,DarkStore> p : distList) {
-            result.add(p.getValue());
+    }
+
+    // Only the k closest stores within maxDistance, closest first
+    public List<DarkStore> getNearestDarkStores(double ux, double uy, int k, double maxDistance) {
+        lock.readLock().lock();
+        try {
+            return darkStores.nearest(ux, uy, k, maxDistance);
+        } finally {
+            lock.readLock().unlock();
         }
-        return result;
     }
 }
 
@@ -325,8 +2385,7 @@ class Cart {
     public void addItem(int sku, int qty) {
         Product prod = ProductFactory.createProduct(sku);
         items.add(new Pair<>(prod, qty));
-        System.out.println("[Cart] Added SKU " + sku + " (" + prod.getName() 
-                         + ") x" + qty);
+        EventSink.getInstance().emit(EventType.CART_ITEM_ADDED, prod.getName(), null, sku, qty, 0, 0);
     }
 
     public double getTotal() {
@@ -365,8 +2424,361 @@ class User {
 
 class DeliveryPartner {
     public String name;
+    public volatile double x, y;       // last known location
+    public int capacity;               // orders per trip
+
     public DeliveryPartner(String n) {
+        this(n, 0.0, 0.0, 1);
+    }
+
+    public DeliveryPartner(String n, double x_coord, double y_coord, int capacity) {
         name = n;
+        x    = x_coord;
+        y    = y_coord;
+        this.capacity = capacity;
+    }
+}
+
+/////////////////////////////////////////////
+// DispatchEngine (Singleton)
+/////////////////////////////////////////////
+
+// Orders going out of one store on one partner's trip
+class DeliveryBatch {
+    public DeliveryPartner partner;
+    public DarkStore store;
+    public List<Order> orders = new ArrayList<>();
+    public double bearing;            // direction from the store of the first drop, radians
+    public double lastDropX, lastDropY;
+    public long openedAtMillis;
+
+    public DeliveryBatch(DeliveryPartner partner, DarkStore store, double bearing, long openedAtMillis) {
+        this.partner = partner;
+        this.store   = store;
+        this.bearing = bearing;
+        this.openedAtMillis = openedAtMillis;
+    }
+}
+
+// Assigns pickups to the nearest idle partner and lets later orders from the same
+// store going roughly the same way ride along, until the partner is full or the
+// batching window closes.
+class DispatchEngine {
+    private static final double MAX_PICKUP_DISTANCE = 10.0;            // KM from partner to store
+    private static final double MAX_BEARING_DIFF    = Math.toRadians(30);
+    private static DispatchEngine instance;
+
+    // A pickup nobody was free for
+    private static class PendingPickup {
+        final Order order;
+        final double destX, destY;
+        final long requestedAtNanos;
+
+        PendingPickup(Order order, double destX, double destY, long requestedAtNanos) {
+            this.order = order;
+            this.destX = destX;
+            this.destY = destY;
+            this.requestedAtNanos = requestedAtNanos;
+        }
+    }
+
+    private GridIndex<DeliveryPartner> idlePartners = new GridIndex<>(2.0);
+    private Map<DarkStore,List<DeliveryBatch>> openBatches = new HashMap<>();
+    private Map<DarkStore,Deque<PendingPickup>> waiting = new HashMap<>();   // per store, oldest first
+    private int waitingCount;
+    private ScheduledExecutorService timer;
+    private long batchWindowMillis = 60_000;
+    private long tripMillis        = 15 * 60_000;
+
+    // Metrics
+    private AtomicLong pickups        = new AtomicLong();   // store pickups dispatched
+    private AtomicLong trips          = new AtomicLong();   // batches opened
+    private AtomicLong assigned       = new AtomicLong();   // pickups that got a partner, now or later
+    private AtomicLong latencyNanos   = new AtomicLong();   // request -> partner, including time spent waiting
+    private AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private DispatchEngine() {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dispatch-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::closeExpiredBatches, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized DispatchEngine getInstance() {
+        if (instance == null) {
+            instance = new DispatchEngine();
+        }
+        return instance;
+    }
+
+    public synchronized void configure(long batchWindowMillis, long tripMillis) {
+        this.batchWindowMillis = batchWindowMillis;
+        this.tripMillis        = tripMillis;
+    }
+
+    public synchronized void registerPartner(DeliveryPartner partner) {
+        idlePartners.insert(partner, partner.x, partner.y);
+        serveWaiting(partner.x, partner.y);
+    }
+
+    // Picks the partner who takes this order's items from the store to (destX, destY).
+    // Returns null when every partner in range is busy, the pickup then waits for the next free one.
+    public DeliveryPartner dispatch(Order order, DarkStore store, double destX, double destY) {
+        long start = System.nanoTime();
+        DeliveryPartner partner;
+        synchronized (this) {
+            partner = assign(order, store, destX, destY);
+            if (partner == null) {
+                waiting.computeIfAbsent(store, k -> new ArrayDeque<>()).add(new PendingPickup(order, destX, destY, start));
+                waitingCount++;
+            }
+        }
+        pickups.incrementAndGet();
+        if (partner != null) {
+            recordLatency(start);
+        }
+        return partner;
+    }
+
+    // One sample per assigned pickup; a queued pickup is sampled when it finally gets a partner
+    private void recordLatency(long requestedAtNanos) {
+        long took = System.nanoTime() - requestedAtNanos;
+        latencyNanos.addAndGet(took);
+        maxLatencyNanos.accumulateAndGet(took, Math::max);
+    }
+
+    private DeliveryPartner assign(Order order, DarkStore store, double destX, double destY) {
+        long now = System.currentTimeMillis();
+        double bearing = Math.atan2(destY - store.getYCoordinate(), destX - store.getXCoordinate());
+
+        // 1) Ride along with an open batch from this store heading the same way
+        List<DeliveryBatch> batches = openBatches.computeIfAbsent(store, k -> new ArrayList<>());
+        for (DeliveryBatch batch : batches) {
+            double diff = Math.abs(Math.atan2(Math.sin(bearing - batch.bearing), Math.cos(bearing - batch.bearing)));
+            if (diff <= MAX_BEARING_DIFF && batch.orders.size() < batch.partner.capacity
+                    && now - batch.openedAtMillis < batchWindowMillis) {
+                addToBatch(batch, order, destX, destY);
+                assigned.incrementAndGet();
+                return batch.partner;
+            }
+        }
+
+        // 2) Otherwise the nearest idle partner starts a new batch
+        List<DeliveryPartner> nearest = idlePartners.nearest(store.getXCoordinate(), store.getYCoordinate(), 
+                                                             1, MAX_PICKUP_DISTANCE);
+        if (nearest.isEmpty()) {
+            return null;
+        }
+        DeliveryPartner partner = nearest.get(0);
+        idlePartners.remove(partner);
+        DeliveryBatch batch = new DeliveryBatch(partner, store, bearing, now);
+        batches.add(batch);
+        trips.incrementAndGet();
+        addToBatch(batch, order, destX, destY);
+        assigned.incrementAndGet();
+        return partner;
+    }
+
+    private void addToBatch(DeliveryBatch batch, Order order, double destX, double destY) {
+        batch.orders.add(order);
+        batch.lastDropX = destX;
+        batch.lastDropY = destY;
+        if (batch.orders.size() >= batch.partner.capacity) {
+            depart(batch);
+        }
+    }
+
+    // Partner leaves with the batch and becomes idle again at the last drop after the trip
+    private void depart(DeliveryBatch batch) {
+        List<DeliveryBatch> batches = openBatches.get(batch.store);
+        if (batches == null || !batches.remove(batch)) 
+            return;
+        timer.schedule(() -> completeTrip(batch.partner, batch.lastDropX, batch.lastDropY), 
+                       tripMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void closeExpiredBatches() {
+        long now = System.currentTimeMillis();
+        List<DeliveryBatch> expired = new ArrayList<>();
+        for (List<DeliveryBatch> batches : openBatches.values()) {
+            for (DeliveryBatch batch : batches) {
+                if (now - batch.openedAtMillis >= batchWindowMillis) {
+                    expired.add(batch);
+                }
+            }
+        }
+        for (DeliveryBatch batch : expired) {
+            depart(batch);
+        }
+    }
+
+    public synchronized void completeTrip(DeliveryPartner partner, double x, double y) {
+        partner.x = x;
+        partner.y = y;
+        idlePartners.insert(partner, x, y);
+        serveWaiting(x, y);
+    }
+
+    // A partner just became free at (x, y): pickups that found nobody free go first,
+    // from the stores closest to them
+    private void serveWaiting(double x, double y) {
+        List<DarkStore> stores = new ArrayList<>(waiting.keySet());
+        stores.sort(Comparator.comparingDouble(store -> store.distanceTo(x, y)));
+        for (DarkStore store : stores) {
+            if (store.distanceTo(x, y) > MAX_PICKUP_DISTANCE) break;
+            Deque<PendingPickup> queue = waiting.get(store);
+            while (!queue.isEmpty()) {
+                PendingPickup w = queue.peek();
+                DeliveryPartner assigned = assign(w.order, store, w.destX, w.destY);
+                if (assigned == null) break;
+                queue.poll();
+                waitingCount--;
+                recordLatency(w.requestedAtNanos);
+                synchronized (w.order.partners) {
+                    w.order.partners.add(assigned);
+                }
+            }
+            if (queue.isEmpty()) {
+                waiting.remove(store);
+            } else {
+                return;   // nobody left in reach of this store
+            }
+        }
+    }
+
+    public synchronized int getWaitingCount() {
+        return waitingCount;
+    }
+
+    public long getPickupCount() {
+        return pickups.get();
+    }
+
+    public long getTripCount() {
+        return trips.get();
+    }
+
+    // Pickups per trip, 1.0 = no batching at all
+    public double getBatchRatio() {
+        long t = trips.get();
+        return t == 0 ? 0 : (double) assigned.get() / t;
+    }
+
+    public double getAverageLatencyMicros() {
+        long n = assigned.get();
+        return n == 0 ? 0 : latencyNanos.get() / 1000.0 / n;
+    }
+
+    public void printMetrics() {
+        System.out.println("[DispatchEngine] pickups=" + pickups.get() + " trips=" + trips.get()
+                         + " waiting=" + getWaitingCount()
+                         + String.format(" batchRatio=%.2f avgAssign=%.1fus maxAssign=%.1fus", 
+                                         getBatchRatio(), getAverageLatencyMicros(), maxLatencyNanos.get() / 1000.0));
+    }
+}
+
+/////////////////////////////////////////////
+// FulfillmentPlanner
+/////////////////////////////////////////////
+
+// Which store ships which SKUs for one order
+class FulfillmentPlan {
+    public Map<DarkStore,Map<Integer,Integer>> allocations = new LinkedHashMap<>(); // store -> SKU -> qty, closest store first
+    public Map<Integer,Integer> shortfall = new LinkedHashMap<>();                  // SKU -> qty no candidate store can supply
+    public double totalDistance;
+
+    public boolean isFeasible() {
+        return shortfall.isEmpty();
+    }
+}
+
+// Picks the cheapest set of nearby stores that together cover the cart: fewest
+// stores (one delivery partner each) first, then the least total distance.
+// It is a set cover, so the search is bounded to the closest few stores.
+class FulfillmentPlanner {
+    private static final int MAX_CANDIDATES = 10;  // 2^10 store subsets at most
+
+    public FulfillmentPlan plan(double ux, double uy, double maxDistance, Map<Integer,Integer> wanted) {
+        List<DarkStore> candidates = 
+            DarkStoreManager.getInstance().getNearestDarkStores(ux, uy, MAX_CANDIDATES, maxDistance);
+        int n = candidates.size();
+        int[] skus = new int[wanted.size()];
+        int[] need = new int[wanted.size()];
+        int i = 0;
+        for (Map.Entry<Integer,Integer> it : wanted.entrySet()) {
+            skus[i] = it.getKey();
+            need[i++] = it.getValue();
+        }
+
+        // Read-only snapshot of what each candidate holds right now
+        int[][] stock = new int[n][skus.length];
+        double[] distance = new double[n];
+        for (int s = 0; s < n; s++) {
+            distance[s] = candidates.get(s).distanceTo(ux, uy);
+            for (int k = 0; k < skus.length; k++) {
+                stock[s][k] = candidates.get(s).checkStock(skus[k]);
+            }
+        }
+
+        FulfillmentPlan plan = new FulfillmentPlan();
+        int bestMask = -1, bestCount = Integer.MAX_VALUE;
+        double bestDistance = Double.MAX_VALUE;
+        for (int mask = 1; mask < (1 << n); mask++) {
+            int count = Integer.bitCount(mask);
+            if (count > bestCount) continue;
+            double dist = 0;
+            for (int s = 0; s < n; s++) {
+                if ((mask & (1 << s)) != 0) dist += distance[s];
+            }
+            if (count == bestCount && dist >= bestDistance) continue;
+            if (covers(mask, stock, need)) {
+                bestMask = mask;
+                bestCount = count;
+                bestDistance = dist;
+            }
+        }
+
+        if (bestMask == -1) {
+            // Nothing covers the cart, report what is missing even with every candidate
+            for (int k = 0; k < skus.length; k++) {
+                int total = 0;
+                for (int s = 0; s < n; s++) total += stock[s][k];
+                if (total < need[k]) plan.shortfall.put(skus[k], need[k] - total);
+            }
+            return plan;
+        }
+
+        // Within the chosen stores take every SKU from the closest store first
+        int[] left = need.clone();
+        for (int s = 0; s < n; s++) {
+            if ((bestMask & (1 << s)) == 0) continue;
+            Map<Integer,Integer> fromStore = new LinkedHashMap<>();
+            for (int k = 0; k < skus.length; k++) {
+                int taken = Math.min(left[k], stock[s][k]);
+                if (taken > 0) {
+                    fromStore.put(skus[k], taken);
+                    left[k] -= taken;
+                }
+            }
+            if (!fromStore.isEmpty()) {
+                plan.allocations.put(candidates.get(s), fromStore);
+                plan.totalDistance += distance[s];
+            }
+        }
+        return plan;
+    }
+
+    private static boolean covers(int mask, int[][] stock, int[] need) {
+        for (int k = 0; k < need.length; k++) {
+            int total = 0;
+            for (int s = 0; s < stock.length && total < need[k]; s++) {
+                if ((mask & (1 << s)) != 0) total += stock[s][k];
+            }
+            if (total < need[k]) return false;
+        }
+        return true;
     }
 }
 
@@ -375,124 +2787,127 @@ class DeliveryPartner {
 /////////////////////////////////////////////
 
 class Order {
-    private static int nextId = 1;
+    private static AtomicInteger nextId = new AtomicInteger(1);
     public int orderId;
     public User user;
     public List<Pair<Product,Integer>> items = new ArrayList<>();
     public List<DeliveryPartner> partners = new ArrayList<>();
+    public Map<DarkStore,Map<Integer,Integer>> allocations = new LinkedHashMap<>(); // store -> SKU -> qty it ships
     public double totalAmount;
 
     public Order(User u) {
-        orderId = nextId++;
+        orderId = nextId.getAndIncrement();
         user    = u;
         totalAmount = 0.0;
     }
 }
 
 class OrderManager {
+    private static final long RESERVATION_TTL_MS = 30_000;
+    private static final int MAX_PLAN_ATTEMPTS = 3;
     private static OrderManager instance;
     private List<Order> orders;
+    private FulfillmentPlanner planner = new FulfillmentPlanner();
 
     private OrderManager() {
-        orders = new ArrayList<>();
+        orders = Collections.synchronizedList(new ArrayList<>());
     }
 
-    public static OrderManager getInstance() {
+    public static synchronized OrderManager getInstance() {
         if (instance == null) {
             instance = new OrderManager();
         }
         return instance;
     }
 
-    public void placeOrder(User user, Cart cart) {
-        System.out.println("\n[OrderManager] Placing Order for: " + user.name);
+    // Returns the placed order, or null when nothing could be placed
+    public Order placeOrder(User user, Cart cart) {
+        EventSink events = EventSink.getInstance();
+        events.emit(EventType.ORDER_STARTED, user.name);
 
         List<Pair<Product,Integer>> requestedItems = cart.getItems();
 
         // 1) Find nearby dark stores within 5 KM
         double maxDist = 5.0;
         List<DarkStore> nearbyDarkStores = 
-            DarkStoreManager.getInstance().getNearbyDarkStores(user.x, user.y, maxDist);
+            DarkStoreManager.getInstance().getNearestDarkStores(user.x, user.y, 1, maxDist);
 
         if (nearbyDarkStores.isEmpty()) {
-            System.out.println("  No dark stores within 5 KM. Cannot fulfill order.");
-            return;
+            events.emit(EventType.NO_STORE_NEARBY, user.name);
+            return null;
         }
 
-        // 2) Check if closest store has all items
-        DarkStore firstStore = nearbyDarkStores.get(0);
-        boolean allInFirst = true;
+        Map<Integer,Integer> allItems = new LinkedHashMap<>();
         for (Pair<Product,Integer> item : requestedItems) {
-            int sku = item.getKey().getSku();
-            int qty = item.getValue();
-            if (firstStore.checkStock(sku) < qty) {
-                allInFirst = false;
-                break;
+            allItems.merge(item.getKey().getSku(), item.getValue(), Integer::sum);
+        }
+
+        // The closest store is where this demand should have been served from,
+        // count the whole cart there even if it ends up split or short
+        DemandForecaster forecaster = DemandForecaster.getInstance();
+        for (Map.Entry<Integer,Integer> entry : allItems.entrySet()) {
+            forecaster.recordDemand(nearbyDarkStores.get(0).getName(), entry.getKey(), entry.getValue());
+        }
+
+        // 2) Plan on a snapshot, then hold exactly the planned stock. If another checkout
+        //    got there first the holds are given back and we plan again.
+        List<Pair<DarkStore,Reservation>> holds = null;
+        FulfillmentPlan plan = null;
+        for (int attempt = 0; attempt < MAX_PLAN_ATTEMPTS && holds == null; attempt++) {
+            plan = planner.plan(user.x, user.y, maxDist, allItems);
+            if (!plan.isFeasible()) {
+                events.emit(EventType.ORDER_UNFULFILLABLE, user.name);
+                for (Map.Entry<Integer,Integer> entry : plan.shortfall.entrySet()) {
+                    events.emit(EventType.SHORTFALL, null, null, entry.getKey(), entry.getValue(), 0, 0);
+                }
+                events.emit(EventType.ORDER_REJECTED, user.name);
+                return null;
             }
+            holds = reserveAll(plan);
+            if (holds != null && !claimAll(holds)) {
+                holds = null;
+            }
+        }
+        if (holds == null) {
+            events.emit(EventType.PLAN_RETRIES_EXHAUSTED, user.name);
+            return null;
         }
 
+        // 3) Commit the holds only now that the whole plan is held and claimed
         Order order = new Order(user);
+        for (int i = 0; i < holds.size(); i++) {
+            Pair<DarkStore,Reservation> hold = holds.get(i);
+            try {
+                hold.getKey().commit(hold.getValue());
+            } catch (RuntimeException e) {
+                releaseAll(holds.subList(i, holds.size()));
+                throw e;
+            }
+            order.allocations.put(hold.getKey(), plan.allocations.get(hold.getKey()));
+        }
 
         // One delivery partner required...
-        if (allInFirst) {
-            System.out.println("  All items at: " + firstStore.getName());
-
+        if (order.allocations.size() == 1 && plan.allocations.size() == 1) {
+            DarkStore store = order.allocations.keySet().iterator().next();
+            events.emit(EventType.ALL_AT_STORE, store.getName());
             for (Pair<Product,Integer> item : requestedItems) {
-                int sku = item.getKey().getSku();
-                int qty = item.getValue();
-                firstStore.removeStock(sku, qty);
-                order.items.add(new Pair<>(item.getKey(), qty));
+                order.items.add(new Pair<>(item.getKey(), item.getValue()));
             }
-
             order.totalAmount = cart.getTotal();
-            order.partners.add(new DeliveryPartner("Partner1"));
-            System.out.println("  Assigned Delivery Partner: Partner1");
+            assignPartner(order, store, user);
         }
 
         // Multiple delivery partners required
         else {
-            System.out.println("  Splitting order across stores...");
-            Map<Integer,Integer> allItems = new HashMap<>();
-            for (Pair<Product,Integer> item : requestedItems) {
-                allItems.put(item.getKey().getSku(), item.getValue());
-            }
-
-            int partnerId = 1;
-            for (DarkStore store : nearbyDarkStores) {
-                if (allItems.isEmpty()) break;
-                System.out.println("   Checking: " + store.getName());
-                List<Integer> toErase = new ArrayList<>();
-                for (Map.Entry<Integer,Integer> entry : allItems.entrySet()) {
-                    int sku = entry.getKey();
-                    int qtyNeeded = entry.getValue();
-                    int availableQty = store.checkStock(sku);
-                    if (availableQty <= 0) continue;
-                    int takenQty = Math.min(availableQty, qtyNeeded);
-                    store.removeStock(sku, takenQty);
-                    System.out.println("     " + store.getName() + " supplies SKU " + sku 
-                                     + " x" + takenQty);
-                    order.items.add(new Pair<>(ProductFactory.createProduct(sku), takenQty));
-                    if (qtyNeeded > takenQty) {
-                        allItems.put(sku, qtyNeeded - takenQty);
-                    } else {
-                        toErase.add(sku);
-                    }
-                }
-                for (int sku : toErase) {
-                    allItems.remove(sku);
-                }
-                if (!toErase.isEmpty()) {
-                    String pname = "Partner" + partnerId++;
-                    order.partners.add(new DeliveryPartner(pname));
-                    System.out.println("     Assigned: " + pname + " for " + store.getName());
-                }
-            }
-            if (!allItems.isEmpty()) {
-                System.out.println("  Could not fulfill:");
-                for (Map.Entry<Integer,Integer> entry : allItems.entrySet()) {
-                    System.out.println("    SKU " + entry.getKey() 
-                                     + " x" + entry.getValue());
+            events.emit(EventType.ORDER_SPLIT, null, null, order.allocations.size(), 0, 0, 0);
+            for (Map.Entry<DarkStore,Map<Integer,Integer>> allocation : order.allocations.entrySet()) {
+                DarkStore store = allocation.getKey();
+                events.emit(EventType.STORE_PICK, store.getName());
+                for (Map.Entry<Integer,Integer> held : allocation.getValue().entrySet()) {
+                    events.emit(EventType.STORE_SUPPLIES, store.getName(), null, held.getKey(), held.getValue(), 0, 0);
+                    order.items.add(new Pair<>(ProductFactory.createProduct(held.getKey()), held.getValue()));
                 }
+                assignPartner(order, store, user);
             }
             double sum = 0;
             for (Pair<Product,Integer> it : order.items) {
@@ -501,21 +2916,75 @@ class OrderManager {
             order.totalAmount = sum;
         }
 
-        // Printing Order Summary
-        System.out.println("\n[OrderManager] Order #" + order.orderId + " Summary:");
-        System.out.println("  User: " + user.name + "\n  Items:");
-        for (Pair<Product,Integer> item : order.items) {
-            System.out.println("    SKU " + item.getKey().getSku()
-                             + " (" + item.getKey().getName() + ") x" + item.getValue()
-                             + " @ ₹" + item.getKey().getPrice());
-        }
-        System.out.println("  Total: ₹" + order.totalAmount + "\n  Partners:");
-        for (DeliveryPartner dp : order.partners) {
-            System.out.println("    " + dp.name);
+        // Order Summary
+        if (events.isEnabled()) {
+            events.emit(EventType.ORDER_SUMMARY, user.name, null, order.orderId, 0, 0, 0);
+            for (Pair<Product,Integer> item : order.items) {
+                events.emit(EventType.ORDER_ITEM, item.getKey().getName(), null, item.getKey().getSku(), 
+                            item.getValue(), 0, item.getKey().getPrice());
+            }
+            events.emit(EventType.ORDER_TOTAL, null, null, order.orderId, 0, 0, order.totalAmount);
+            synchronized (order.partners) {
+                for (DeliveryPartner dp : order.partners) {
+                    events.emit(EventType.ORDER_PARTNER, dp.name, null, order.orderId, 0, 0, 0);
+                }
+            }
+            events.emit(EventType.ORDER_END, null, null, order.orderId, 0, 0, 0);
         }
-        System.out.println();
 
         orders.add(order);
+        return order;
+    }
+
+    private void assignPartner(Order order, DarkStore store, User user) {
+        DeliveryPartner partner = DispatchEngine.getInstance().dispatch(order, store, user.x, user.y);
+        if (partner == null) {
+            EventSink.getInstance().emit(EventType.PARTNER_QUEUED, store.getName(), null, order.orderId, 0, 0, 0);
+            return;
+        }
+        synchronized (order.partners) {
+            order.partners.add(partner);
+        }
+        EventSink.getInstance().emit(EventType.PARTNER_ASSIGNED, store.getName(), partner.name, order.orderId, 0, 0, 0);
+    }
+
+    // Holds every allocation of the plan, or nothing at all
+    private List<Pair<DarkStore,Reservation>> reserveAll(FulfillmentPlan plan) {
+        List<Pair<DarkStore,Reservation>> holds = new ArrayList<>();
+        for (Map.Entry<DarkStore,Map<Integer,Integer>> allocation : plan.allocations.entrySet()) {
+            DarkStore store = allocation.getKey();
+            Reservation reservation = store.reserve(allocation.getValue(), RESERVATION_TTL_MS);
+            holds.add(new Pair<>(store, reservation));
+            if (!reservation.getItems().equals(allocation.getValue())) {
+                releaseAll(holds);
+                return null;
+            }
+        }
+        return holds;
+    }
+
+    // Claims every hold before any is committed, so the order never goes out with only
+    // some of its stores. If one has already lapsed, all of them are given back.
+    private boolean claimAll(List<Pair<DarkStore,Reservation>> holds) {
+        for (Pair<DarkStore,Reservation> hold : holds) {
+            if (!hold.getValue().claim()) {
+                EventSink.getInstance().emit(EventType.RESERVATION_EXPIRED, hold.getKey().getName(), null, 
+                                             hold.getValue().getId(), 0, 0, 0);
+                releaseAll(holds);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void releaseAll(List<Pair<DarkStore,Reservation>> holds) {
+        for (Pair<DarkStore,Reservation> hold : holds) {
+            try {
+                hold.getKey().release(hold.getValue());
+            } catch (RuntimeException e) {
+                // That store is stopped; the hold comes back as an orphan when it is reopened
+            }
+        }
     }
 
     public List<Order> getAllOrders() {
@@ -532,23 +3001,25 @@ class ZeptoHelper {
         System.out.println("\n[Zepto] All Available products within 5 KM for " + user.name + ":");
         DarkStoreManager dsManager = DarkStoreManager.getInstance();
         List<DarkStore> nearbyStores = dsManager.getNearbyDarkStores(user.x, user.y, 5.0);
-        Map<Integer,Double> skuToPrice = new HashMap<>();
-        Map<Integer,String>  skuToName  = new HashMap<>();
-
-        for (DarkStore ds : nearbyStores) {
-            for (Product product : ds.getAllProducts()) {
-                int sku = product.getSku();
-                if (!skuToPrice.containsKey(sku)) {
-                    skuToPrice.put(sku, product.getPrice());
-                    skuToName.put(sku, product.getName());
-                }
-            }
+
+        // Union of the nearby stores' availability bitmaps, no per-store product lists
+        for (Product product : ProductSearchIndex.getInstance().searchAvailable("", nearbyStores)) {
+            System.out.println("  SKU " + product.getSku() + " - " 
+                               + product.getName() 
+                               + " @ ₹" + product.getPrice());
         }
+    }
 
-        for (Map.Entry<Integer,Double> entry : skuToPrice.entrySet()) {
-            System.out.println("  SKU " + entry.getKey() + " - " 
-                               + skuToName.get(entry.getKey()) 
-                               + " @ ₹" + entry.getValue());
+    public static void searchItems(User user, String query) {
+        DarkStoreManager dsManager = DarkStoreManager.getInstance();
+        List<DarkStore> nearbyStores = dsManager.getNearbyDarkStores(user.x, user.y, 5.0);
+        ProductSearchIndex index = ProductSearchIndex.getInstance();
+
+        System.out.println("\n[Zepto] Search '" + query + "' within 5 KM for " + user.name 
+                           + " (suggestions " + index.suggest(query, 5) + "):");
+        for (Product product : index.searchAvailable(query, nearbyStores)) {
+            System.out.println("  SKU " + product.getSku() + " - " + product.getName() 
+                               + " [" + product.getCategory() + "] @ ₹" + product.getPrice());
         }
     }
 
@@ -557,7 +3028,7 @@ class ZeptoHelper {
 
         // DarkStore A.......
         DarkStore darkStoreA = new DarkStore("DarkStoreA", 0.0, 0.0);
-        darkStoreA.setReplenishStrategy(new ThresholdReplenishStrategy(3));
+        darkStoreA.setReplenishStrategy(new ForecastReplenishStrategy("DarkStoreA", 0.95));
         System.out.println("\nAdding stocks in DarkStoreA....");
         darkStoreA.addStock(101, 5);
         darkStoreA.addStock(102, 2);
@@ -579,11 +3050,175 @@ class ZeptoHelper {
         dsManager.registerDarkStore(darkStoreA);
         dsManager.registerDarkStore(darkStoreB);
         dsManager.registerDarkStore(darkStoreC);
+
+        // Refill stores in the background as orders drain them
+        ReplenishmentScheduler scheduler = ReplenishmentScheduler.getInstance();
+        scheduler.registerSupplier("FreshFarms", 101, 102);
+        scheduler.registerSupplier("SweetCo", 103);
+        scheduler.watch(darkStoreA);
+        scheduler.watch(darkStoreB);
+        scheduler.watch(darkStoreC);
+        Map<Integer,Integer> parLevels = new HashMap<>();
+        parLevels.put(201, 10);
+        scheduler.scheduleWeekly(darkStoreC, new WeeklyReplenishStrategy(), parLevels, 
+                                 CronSchedule.weekly(DayOfWeek.MONDAY, LocalTime.of(6, 0)));
+
+        // Delivery partners waiting around the stores
+        DispatchEngine dispatcher = DispatchEngine.getInstance();
+        dispatcher.registerPartner(new DeliveryPartner("Ravi", 0.5, 0.5, 3));
+        dispatcher.registerPartner(new DeliveryPartner("Sunil", 3.5, 1.0, 3));
+        dispatcher.registerPartner(new DeliveryPartner("Kiran", 2.0, 2.5, 3));
+        dispatcher.registerPartner(new DeliveryPartner("Amit", 1.0, 0.0, 2));
+    }
+
+    // Stock on a logged store survives a restart: write, snapshot, write more, reopen
+    public static void showRecovery() throws IOException {
+        Path dataDir = Files.createTempDirectory("zepto-inventory");
+        InventoryLogWriter writer = new InventoryLogWriter(dataDir);
+        DbInventoryStore store = writer.open("DarkStoreD");
+        DarkStore darkStoreD = new DarkStore("DarkStoreD", 4.0, 4.0, store);
+        darkStoreD.addStock(101, 10);
+        darkStoreD.addStock(102, 6);
+        writer.snapshotAll();
+
+        Map<Integer,Integer> wanted = new HashMap<>();
+        wanted.put(101, 3);
+        darkStoreD.commit(darkStoreD.reserve(wanted, 30_000));
+        wanted.put(102, 2);
+        darkStoreD.reserve(wanted, 30_000);    // checkout never finishes
+        writer.close();
+
+        InventoryLogWriter restarted = new InventoryLogWriter(dataDir);
+        for (Map.Entry<String,DbInventoryStore> it : restarted.recoverAll().entrySet()) {
+            System.out.println("Recovered " + it.getKey() + ": SKU 101 = " + it.getValue().checkStock(101)
+                               + ", SKU 102 = " + it.getValue().checkStock(102));
+        }
+        restarted.close();
+    }
+}
+
+/////////////////////////////////////////////
+// ZeptoSimulator (load test)
+/////////////////////////////////////////////
+
+// Builds a synthetic city of stores, partners and shoppers and hammers placeOrder
+// from many threads. Run with: java ZeptoClone --simulate [orders] [threads] [eventDir]
+class ZeptoSimulator {
+    private static final double CITY_SIZE = 40.0;      // KM per side
+    private static final int STORES       = 200;
+    private static final int PARTNERS     = 3000;
+    private static final int[] SKUS       = {101, 102, 103, 201, 202, 301, 302, 303, 304, 305};
+
+    // eventDir == null runs with events switched off, otherwise they go to JSON-lines files there
+    public static void run(int totalOrders, int threads, Path eventDir) throws InterruptedException, IOException {
+        if (totalOrders <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("Need at least one order and one thread, got orders=" 
+                                               + totalOrders + " threads=" + threads);
+        }
+        Random random = new Random(42);
+        EventSink events = EventSink.getInstance();
+        if (eventDir == null) {
+            events.disable();       // no console printing while measuring
+        } else {
+            events.useFile(eventDir);
+        }
+        try {
+            DarkStoreManager dsManager = DarkStoreManager.getInstance();
+            ReplenishmentScheduler scheduler = ReplenishmentScheduler.getInstance();
+            for (int i = 0; i < STORES; i++) {
+                DarkStore store = new DarkStore("Store" + i, random.nextDouble() * CITY_SIZE, 
+                                                random.nextDouble() * CITY_SIZE);
+                store.setReplenishStrategy(new ThresholdReplenishStrategy(5, 40));
+                for (int sku : SKUS) {
+                    if (random.nextInt(10) < 7) {
+                        store.addStock(sku, 5 + random.nextInt(60));
+                    }
+                }
+                dsManager.registerDarkStore(store);
+                scheduler.watch(store);
+            }
+            DispatchEngine dispatcher = DispatchEngine.getInstance();
+            dispatcher.configure(50, 100);    // trips take 100 ms of simulated time
+            for (int i = 0; i < PARTNERS; i++) {
+                dispatcher.registerPartner(new DeliveryPartner("Rider" + i, random.nextDouble() * CITY_SIZE,
+                                                               random.nextDouble() * CITY_SIZE, 3));
+            }
+
+            long[][] latencies = new long[threads][];
+            int[] placed = new int[threads];
+            int[] split  = new int[threads];
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                final int count = totalOrders / threads + (t < totalOrders % threads ? 1 : 0);
+                workers[t] = new Thread(() -> {
+                    Random r = new Random(1000 + id);
+                    long[] mine = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        User user = new User("Shopper" + id + "_" + i, r.nextDouble() * CITY_SIZE, 
+                                             r.nextDouble() * CITY_SIZE);
+                        int lines = 1 + r.nextInt(5);
+                        for (int l = 0; l < lines; l++) {
+                            user.getCart().addItem(SKUS[r.nextInt(SKUS.length)], 1 + r.nextInt(3));
+                        }
+                        long began = System.nanoTime();
+                        Order order = OrderManager.getInstance().placeOrder(user, user.getCart());
+                        mine[i] = System.nanoTime() - began;
+                        if (order != null) {
+                            placed[id]++;
+                            if (order.allocations.size() > 1) split[id]++;
+                        }
+                    }
+                    latencies[id] = mine;
+                }, "shopper-" + t);
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            scheduler.flush();    // background refills report events too, let them finish first
+            events.flush();
+
+            long[] all = new long[totalOrders];
+            int at = 0, totalPlaced = 0, totalSplit = 0;
+            for (int t = 0; t < threads; t++) {
+                System.arraycopy(latencies[t], 0, all, at, latencies[t].length);
+                at += latencies[t].length;
+                totalPlaced += placed[t];
+                totalSplit  += split[t];
+            }
+            Arrays.sort(all);
+
+            System.out.println("=== Zepto simulation: " + totalOrders + " orders, " + threads + " threads, "
+                             + STORES + " stores ===");
+            System.out.printf("Throughput      : %.0f orders/s%n", totalOrders / (elapsed / 1e9));
+            System.out.printf("Latency p50/p99 : %.1f us / %.1f us%n", 
+                              all[all.length / 2] / 1e3, all[(int) (all.length * 0.99)] / 1e3);
+            System.out.printf("Fulfillment     : %.1f%% of orders placed%n", 100.0 * totalPlaced / totalOrders);
+            System.out.printf("Split rate      : %.1f%% of placed orders%n", 
+                              totalPlaced == 0 ? 0 : 100.0 * totalSplit / totalPlaced);
+            dispatcher.printMetrics();
+            if (eventDir != null) {
+                System.out.println("Events          : written to " + eventDir + ", " + events.getDroppedCount() + " dropped");
+            }
+        } finally {
+            events.useConsole();
+        }
     }
 }
 
 public class ZeptoClone {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if (args.length > 0 && args[0].equals("--simulate")) {
+            int orders  = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+            int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            Path eventDir = args.length > 3 ? Paths.get(args[3]) : null;
+            ZeptoSimulator.run(orders, threads, eventDir);
+            return;
+        }
+
         // 1) Initialize.
         ZeptoHelper.initialize();
 
@@ -593,6 +3228,8 @@ public class ZeptoClone {
 
         // 3) Show all available items via Zepto
         ZeptoHelper.showAllItems(user);
+        ZeptoHelper.searchItems(user, "choc");
+        ZeptoHelper.searchItems(user, "fru");
 
         // 4) User adds items to cart
         System.out.println("\nAdding items to cart");
@@ -604,6 +3241,13 @@ public class ZeptoClone {
         // 5) Place Order
         OrderManager.getInstance().placeOrder(user, cart);
 
+        // 6) Stores that ran low are refilled in the background
+        ReplenishmentScheduler.getInstance().flush();
+        DispatchEngine.getInstance().printMetrics();
+
+        // 7) A logged store comes back with the same stock after a restart
+        ZeptoHelper.showRecovery();
+
         System.out.println("\n=== Demo Complete ===");
     }
 }
@@ -1,5 +1,9 @@
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.Math;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.text.SimpleDateFormat;
 
 // -------------------- Observer Pattern -------------------- //
@@ -64,9 +68,10 @@ enum Gender {
 }
 
 // Location class
+// Immutable, so profiles can hand out the one they hold; moving a user means a new Location
 class Location {
-    private double latitude;
-    private double longitude;
+    private final double latitude;
+    private final double longitude;
 
     public Location() {
         latitude = 0.0;
@@ -86,14 +91,6 @@ class Location {
         return longitude;
     }
 
-    public void setLatitude(double lat) {
-        latitude = lat;
-    }
-
-    public void setLongitude(double lon) {
-        longitude = lon;
-    }
-
     // Calculate distance in kilometers between two locations using Haversine formula
     public double distanceInKm(Location other) {
         final double earthRadiusKm = 6371.0;
@@ -139,8 +136,16 @@ class Preference {
     private int maxAge;
     private double maxDistance; // in kilometers
     private List<String> interests;
+    private int modCount; // bumped on every change, used by snapshots to skip clean shards
+    private final Object lock;
 
     public Preference() {
+        this(null);
+    }
+
+    // Changes lock on the owning user, the snapshot writer holds the same lock while encoding it
+    Preference(Object owner) {
+        lock = owner != null ? owner : this;
         interestedIn = new ArrayList<>();
         interests = new ArrayList<>();
         minAge = 18;
@@ -149,28 +154,46 @@ class Preference {
     }
 
     public void addGenderPreference(Gender gender) {
-        interestedIn.add(gender);
+        synchronized (lock) {
+            interestedIn.add(gender);
+            modCount++;
+        }
     }
 
     public void removeGenderPreference(Gender gender) {
-        interestedIn.remove(gender);
+        synchronized (lock) {
+            interestedIn.remove(gender);
+            modCount++;
+        }
     }
 
     public void setAgeRange(int min, int max) {
-        minAge = min;
-        maxAge = max;
+        synchronized (lock) {
+            minAge = min;
+            maxAge = max;
+            modCount++;
+        }
     }
 
     public void setMaxDistance(double distance) {
-        maxDistance = distance;
+        synchronized (lock) {
+            maxDistance = distance;
+            modCount++;
+        }
     }
 
     public void addInterest(String interest) {
-        interests.add(interest);
+        synchronized (lock) {
+            interests.add(interest);
+            modCount++;
+        }
     }
 
     public void removeInterest(String interest) {
-        interests.remove(interest);
+        synchronized (lock) {
+            interests.remove(interest);
+            modCount++;
+        }
     }
 
     public boolean isInterestedInGender(Gender gender) {
@@ -186,11 +209,11 @@ class Preference {
     }
 
     public List<String> getInterests() {
-        return interests;
+        return Collections.unmodifiableList(interests);
     }
 
     public List<Gender> getInterestedGenders() {
-        return interestedIn;
+        return Collections.unmodifiableList(interestedIn);
     }
 
     public int getMinAge() {
@@ -204,6 +227,12 @@ class Preference {
     public double getMaxDistance() {
         return maxDistance;
     }
+
+    public int getModCount() {
+        synchronized (lock) {
+            return modCount;
+        }
+    }
 }
 
 // -------------------- Message System -------------------- //
@@ -220,6 +249,13 @@ class Message {
         timestamp = System.currentTimeMillis();
     }
 
+    // Used while restoring a snapshot, keeps the original send time
+    public Message(String sender, String msg, long time) {
+        senderId = sender;
+        content = msg;
+        timestamp = time;
+    }
+
     public String getSenderId() {
         return senderId;
     }
@@ -261,6 +297,10 @@ class ChatRoom {
         messages.add(msg);
     }
 
+    public void addMessage(Message msg) {
+        messages.add(msg);
+    }
+
     public boolean hasParticipant(String userId) {
         return participantIds.contains(userId);
     }
@@ -292,9 +332,17 @@ class UserProfile {
     private String bio;
     private List<String> photos;
     private List<Interest> interests;
-    private Location location;
+    private volatile Location location; // replaced as a whole, never changed in place
+    private int modCount; // bumped on every change, used by snapshots to skip clean shards
+    private final Object lock;
 
     public UserProfile() {
+        this(null);
+    }
+
+    // Changes lock on the owning user, the snapshot writer holds the same lock while encoding it
+    UserProfile(Object owner) {
+        lock = owner != null ? owner : this;
         name = "";
         age = 0;
         gender = Gender.OTHER;
@@ -304,40 +352,67 @@ class UserProfile {
     }
 
     public void setName(String n) {
-        name = n;
+        synchronized (lock) {
+            name = n;
+            modCount++;
+        }
     }
 
     public void setAge(int a) {
-        age = a;
+        synchronized (lock) {
+            age = a;
+            modCount++;
+        }
     }
 
     public void setGender(Gender g) {
-        gender = g;
+        synchronized (lock) {
+            gender = g;
+            modCount++;
+        }
     }
 
     public void setBio(String b) {
-        bio = b;
+        synchronized (lock) {
+            bio = b;
+            modCount++;
+        }
     }
 
     public void addPhoto(String photoUrl) {
-        photos.add(photoUrl);
+        synchronized (lock) {
+            photos.add(photoUrl);
+            modCount++;
+        }
     }
 
     public void removePhoto(String photoUrl) {
-        photos.remove(photoUrl);
+        synchronized (lock) {
+            photos.remove(photoUrl);
+            modCount++;
+        }
     }
 
     public void addInterest(String name, String category) {
-        Interest interest = new Interest(name, category);
-        interests.add(interest);
+        synchronized (lock) {
+            Interest interest = new Interest(name, category);
+            interests.add(interest);
+            modCount++;
+        }
     }
 
     public void removeInterest(String name) {
-        interests.removeIf(i -> i.getName().equals(name));
+        synchronized (lock) {
+            interests.removeIf(i -> i.getName().equals(name));
+            modCount++;
+        }
     }
 
     public void setLocation(Location loc) {
-        location = loc;
+        synchronized (lock) {
+            location = loc;
+            modCount++;
+        }
     }
 
     public String getName() {
@@ -357,17 +432,23 @@ class UserProfile {
     }
 
     public List<String> getPhotos() {
-        return photos;
+        return Collections.unmodifiableList(photos);
     }
 
     public List<Interest> getInterests() {
-        return interests;
+        return Collections.unmodifiableList(interests);
     }
 
     public Location getLocation() {
         return location;
     }
 
+    public int getModCount() {
+        synchronized (lock) {
+            return modCount;
+        }
+    }
+
     public void display() {
         System.out.println("===== Profile =====");
         System.out.println("Name: " + name);
@@ -418,15 +499,23 @@ class User {
     private UserProfile profile;
     private Preference preference;
     private Map<String, SwipeAction> swipeHistory;    // userId -> action
+    private int swipeCount;
     private NotificationObserver notificationObserver;
 
     public User(String userId) {
+        this(userId, true);
+    }
+
+    // Snapshot loading builds users on many threads, so it registers the observers itself afterwards
+    User(String userId, boolean registerObserver) {
         id = userId;
-        profile = new UserProfile();
-        preference = new Preference();
+        profile = new UserProfile(this);
+        preference = new Preference(this);
         swipeHistory = new HashMap<>();
         notificationObserver = new UserNotificationObserver(userId);
-        NotificationService.getInstance().registerObserver(userId, notificationObserver);
+        if (registerObserver) {
+            NotificationService.getInstance().registerObserver(userId, notificationObserver);
+        }
     }
 
     public String getId() {
@@ -441,8 +530,9 @@ class User {
         return preference;
     }
 
-    public void swipe(String otherUserId, SwipeAction action) {
+    public synchronized void swipe(String otherUserId, SwipeAction action) {
         swipeHistory.put(otherUserId, action);
+        swipeCount++;
     }
 
     public boolean hasLiked(String otherUserId) {
@@ -457,6 +547,19 @@ class User {
         return swipeHistory.containsKey(otherUserId);
     }
 
+    public Map<String, SwipeAction> getSwipeHistory() {
+        return Collections.unmodifiableMap(swipeHistory);
+    }
+
+    public NotificationObserver getNotificationObserver() {
+        return notificationObserver;
+    }
+
+    // Changes whenever profile, preference or swipes change
+    public synchronized long getModCount() {
+        return (long) profile.getModCount() + preference.getModCount() + swipeCount;
+    }
+
     public void displayProfile() {  // Principle of least knowledge
         profile.display();
     }
@@ -656,7 +759,7 @@ class DatingApp {
         matcher = MatcherFactory.createMatcher(type);
     }
 
-    public User createUser(String userId) {
+    public synchronized User createUser(String userId) {
         User user = new User(userId);
         users.add(user);
         return user;
@@ -703,7 +806,7 @@ class DatingApp {
         return filteredUsers;
     }
 
-    public boolean swipe(String userId, String targetUserId, SwipeAction action) {
+    public synchronized boolean swipe(String userId, String targetUserId, SwipeAction action) {
         User user = getUserById(userId);
         User targetUser = getUserById(targetUserId);
 
@@ -738,7 +841,7 @@ class DatingApp {
         return null;
     }
 
-    public void sendMessage(String senderId, String receiverId, String content) {
+    public synchronized void sendMessage(String senderId, String receiverId, String content) {
         ChatRoom chatRoom = getChatRoom(senderId, receiverId);
         if (chatRoom == null) {
             System.out.println("No chat room found between these users.");
@@ -759,6 +862,27 @@ class DatingApp {
         user.displayProfile();
     }
 
+    public List<User> getUsers() {
+        return users;
+    }
+
+    public List<ChatRoom> getChatRooms() {
+        return chatRooms;
+    }
+
+    // Replaces the in-memory state with the one loaded from a snapshot
+    public synchronized void restore(List<User> restoredUsers, List<ChatRoom> restoredChatRooms) {
+        // Observers of the replaced users would otherwise keep getting notifications
+        for (User user : users) {
+            NotificationService.getInstance().removeObserver(user.getId());
+        }
+        users = restoredUsers;
+        chatRooms = restoredChatRooms;
+        for (User user : users) {
+            NotificationService.getInstance().registerObserver(user.getId(), user.getNotificationObserver());
+        }
+    }
+
     public void displayChatRoom(String user1Id, String user2Id) {
         ChatRoom chatRoom = getChatRoom(user1Id, user2Id);
         if (chatRoom == null) {
@@ -769,6 +893,445 @@ class DatingApp {
     }
 }
 
+// -------------------- Snapshot Persistence -------------------- //
+
+// Binary snapshot of the DatingApp state, so a restart does not have to rebuild everything.
+// Users are split into shards by their position in the users list and every shard is its own file.
+// Only shards that changed since the last snapshot are written again, and on startup all shards
+// are decoded in parallel.
+//
+// manifest.bin : magic, version, shardSize, shardCount, userIds
+// shard-N.bin  : magic, version, interned strings, users (profile, preference, swipe bitmaps), chat rooms
+class SnapshotManager {
+    private static final int MAGIC = 0x54494E44; // "TIND"
+    private static final int VERSION = 1;
+
+    private final DatingApp app;
+    private final Path dir;
+    private final int shardSize;
+    private final Map<Integer, Long> writtenStamps; // shard -> stamp of the version on disk
+    private ScheduledExecutorService writer;
+
+    public SnapshotManager(DatingApp app, Path dir, int shardSize) {
+        this.app = app;
+        this.dir = dir;
+        this.shardSize = shardSize;
+        this.writtenStamps = new HashMap<>();
+    }
+
+    public void startBackgroundSnapshots(long periodMillis) {
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "snapshot-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                snapshotNow();
+            } catch (IOException e) {
+                System.out.println("Snapshot failed: " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stopBackgroundSnapshots() {
+        if (writer != null) {
+            writer.shutdown();
+        }
+    }
+
+    // Writes every shard that changed since the last snapshot, returns how many were written
+    public synchronized int snapshotNow() throws IOException {
+        Files.createDirectories(dir);
+        List<User> users;
+        List<ChatRoom> rooms;
+        synchronized (app) {
+            users = new ArrayList<>(app.getUsers());
+            rooms = new ArrayList<>(app.getChatRooms());
+        }
+
+        Map<String, Integer> ordinals = new HashMap<>();
+        for (int i = 0; i < users.size(); i++) {
+            ordinals.put(users.get(i).getId(), i);
+        }
+        int shardCount = (users.size() + shardSize - 1) / shardSize;
+        List<List<ChatRoom>> roomsByShard = roomsByShard(rooms, ordinals, shardCount);
+
+        int written = 0;
+        for (int shard = 0; shard < shardCount; shard++) {
+            int from = shard * shardSize;
+            int to = Math.min(users.size(), from + shardSize);
+            long stamp = shardStamp(users, from, to, roomsByShard.get(shard));
+            Long lastStamp = writtenStamps.get(shard);
+            if (lastStamp != null && lastStamp == stamp) {
+                continue;
+            }
+
+            byte[] bytes;
+            synchronized (app) { // chat rooms change under the app lock, each user under its own
+                bytes = encodeShard(users, from, to, roomsByShard.get(shard), ordinals);
+            }
+            writeAtomically(dir.resolve("shard-" + shard + ".bin"), bytes);
+            writtenStamps.put(shard, stamp);
+            written++;
+        }
+
+        // Manifest goes last, a crash in between still leaves a consistent older user list
+        if (written > 0 || !Files.exists(dir.resolve("manifest.bin"))) {
+            writeAtomically(dir.resolve("manifest.bin"), encodeManifest(users, shardCount));
+        }
+        return written;
+    }
+
+    // Loads the snapshot into the app, decoding shards in parallel
+    public synchronized void load() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+
+        int savedShardSize;
+        int shardCount;
+        String[] ids;
+        try (DataInputStream manifest = open(dir.resolve("manifest.bin"))) {
+            savedShardSize = manifest.readInt();
+            shardCount = manifest.readInt();
+            ids = new String[manifest.readInt()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = readString(manifest);
+            }
+        }
+        if (savedShardSize != shardSize) {
+            throw new IOException("snapshot was written with shard size " + savedShardSize);
+        }
+
+        User[] users = new User[ids.length];
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<List<ChatRoom>>> shardRooms = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            Path file = dir.resolve("shard-" + shard + ".bin");
+            shardRooms.add(pool.submit(() -> decodeShard(file, ids, users)));
+        }
+        pool.shutdown();
+
+        List<ChatRoom> rooms = new ArrayList<>();
+        try {
+            for (Future<List<ChatRoom>> future : shardRooms) {
+                rooms.addAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("could not decode snapshot shard", e.getCause());
+        }
+        for (int i = 0; i < users.length; i++) {
+            if (users[i] == null) {
+                throw new IOException("snapshot is missing user " + ids[i]);
+            }
+        }
+
+        List<User> userList = new ArrayList<>(Arrays.asList(users));
+        app.restore(userList, rooms);
+
+        // What we just loaded is already on disk
+        Map<String, Integer> ordinals = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            ordinals.put(ids[i], i);
+        }
+        List<List<ChatRoom>> roomsByShard = roomsByShard(rooms, ordinals, shardCount);
+        writtenStamps.clear();
+        for (int shard = 0; shard < shardCount; shard++) {
+            int from = shard * shardSize;
+            writtenStamps.put(shard, shardStamp(userList, from, Math.min(users.length, from + shardSize), roomsByShard.get(shard)));
+        }
+
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Snapshot loaded: " + users.length + " users, " + rooms.size()
+                + " chat rooms from " + shardCount + " shards in " + millis + " ms");
+    }
+
+    // Chat rooms live in the shard of their first participant
+    private List<List<ChatRoom>> roomsByShard(List<ChatRoom> rooms, Map<String, Integer> ordinals, int shardCount) {
+        List<List<ChatRoom>> result = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            result.add(new ArrayList<>());
+        }
+        for (ChatRoom room : rooms) {
+            Integer ordinal = ordinals.get(room.getParticipants().get(0));
+            if (ordinal != null) {
+                result.get(ordinal / shardSize).add(room);
+            }
+        }
+        return result;
+    }
+
+    // Modification counters only grow, so any change gives a bigger stamp
+    private long shardStamp(List<User> users, int from, int to, List<ChatRoom> rooms) {
+        long stamp = to - from;
+        for (int i = from; i < to; i++) {
+            stamp += users.get(i).getModCount();
+        }
+        stamp += rooms.size();
+        for (ChatRoom room : rooms) {
+            stamp += room.getMessages().size();
+        }
+        return stamp;
+    }
+
+    private byte[] encodeManifest(List<User> users, int shardCount) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(shardSize);
+        out.writeInt(shardCount);
+        out.writeInt(users.size());
+        for (User user : users) {
+            writeString(out, user.getId());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private byte[] encodeShard(List<User> users, int from, int to, List<ChatRoom> rooms,
+                               Map<String, Integer> ordinals) throws IOException {
+        // Interest names and categories repeat a lot, so each distinct string is written once.
+        // The table is filled while the users are encoded, each one under its own lock, and
+        // goes in front of them at the end.
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(from);
+        out.writeInt(to - from);
+        for (int i = from; i < to; i++) {
+            User user = users.get(i);
+            synchronized (user) {
+                writeString(out, user.getId());
+
+                UserProfile profile = user.getProfile();
+                writeString(out, profile.getName());
+                out.writeInt(profile.getAge());
+                out.writeByte(profile.getGender().ordinal());
+                out.writeBoolean(profile.getBio() != null);
+                if (profile.getBio() != null) {
+                    writeString(out, profile.getBio());
+                }
+                out.writeInt(profile.getPhotos().size());
+                for (String photo : profile.getPhotos()) {
+                    writeString(out, photo);
+                }
+                out.writeInt(profile.getInterests().size());
+                for (Interest interest : profile.getInterests()) {
+                    out.writeInt(intern(strings, interest.getName()));
+                    out.writeInt(intern(strings, interest.getCategory()));
+                }
+                Location location = profile.getLocation();
+                out.writeDouble(location.getLatitude());
+                out.writeDouble(location.getLongitude());
+
+                Preference preference = user.getPreference();
+                int genderMask = 0;
+                for (Gender gender : preference.getInterestedGenders()) {
+                    genderMask |= 1 << gender.ordinal();
+                }
+                out.writeByte(genderMask);
+                out.writeInt(preference.getMinAge());
+                out.writeInt(preference.getMaxAge());
+                out.writeDouble(preference.getMaxDistance());
+                out.writeInt(preference.getInterests().size());
+                for (String interest : preference.getInterests()) {
+                    out.writeInt(intern(strings, interest));
+                }
+
+                // Swipes as two bitmaps over user positions instead of userId strings
+                BitSet liked = new BitSet();
+                BitSet disliked = new BitSet();
+                for (Map.Entry<String, SwipeAction> swipe : user.getSwipeHistory().entrySet()) {
+                    Integer ordinal = ordinals.get(swipe.getKey());
+                    if (ordinal == null) {
+                        continue;
+                    }
+                    if (swipe.getValue() == SwipeAction.RIGHT) {
+                        liked.set(ordinal);
+                    } else {
+                        disliked.set(ordinal);
+                    }
+                }
+                writeBitmap(out, liked);
+                writeBitmap(out, disliked);
+            }
+        }
+
+        out.writeInt(rooms.size());
+        for (ChatRoom room : rooms) {
+            writeString(out, room.getId());
+            List<String> participants = room.getParticipants();
+            out.writeInt(ordinals.get(participants.get(0)));
+            out.writeInt(ordinals.get(participants.get(1)));
+            out.writeInt(room.getMessages().size());
+            for (Message msg : room.getMessages()) {
+                out.writeBoolean(msg.getSenderId().equals(participants.get(0)));
+                writeString(out, msg.getContent());
+                out.writeLong(msg.getTimestamp());
+            }
+        }
+        out.flush();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(strings.size());
+        for (String str : strings.keySet()) {
+            writeString(header, str);
+        }
+        header.flush();
+        body.writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    private static int intern(Map<String, Integer> strings, String str) {
+        Integer index = strings.get(str);
+        if (index == null) {
+            index = strings.size();
+            strings.put(str, index);
+        }
+        return index;
+    }
+
+    // Runs on a pool thread, fills its own slice of users and returns the shard's chat rooms
+    private List<ChatRoom> decodeShard(Path file, String[] ids, User[] users) throws IOException {
+        try (DataInputStream in = open(file)) {
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(in);
+            }
+
+            int from = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                User user = new User(readString(in), false);
+
+                UserProfile profile = user.getProfile();
+                profile.setName(readString(in));
+                profile.setAge(in.readInt());
+                profile.setGender(Gender.values()[in.readByte()]);
+                if (in.readBoolean()) {
+                    profile.setBio(readString(in));
+                }
+                int photos = in.readInt();
+                for (int j = 0; j < photos; j++) {
+                    profile.addPhoto(readString(in));
+                }
+                int interests = in.readInt();
+                for (int j = 0; j < interests; j++) {
+                    profile.addInterest(strings[in.readInt()], strings[in.readInt()]);
+                }
+                profile.setLocation(new Location(in.readDouble(), in.readDouble()));
+
+                Preference preference = user.getPreference();
+                int genderMask = in.readByte();
+                for (Gender gender : Gender.values()) {
+                    if ((genderMask & (1 << gender.ordinal())) != 0) {
+                        preference.addGenderPreference(gender);
+                    }
+                }
+                preference.setAgeRange(in.readInt(), in.readInt());
+                preference.setMaxDistance(in.readDouble());
+                int prefInterests = in.readInt();
+                for (int j = 0; j < prefInterests; j++) {
+                    preference.addInterest(strings[in.readInt()]);
+                }
+
+                BitSet liked = readBitmap(in);
+                BitSet disliked = readBitmap(in);
+                for (int o = liked.nextSetBit(0); o >= 0 && o < ids.length; o = liked.nextSetBit(o + 1)) {
+                    user.swipe(ids[o], SwipeAction.RIGHT);
+                }
+                for (int o = disliked.nextSetBit(0); o >= 0 && o < ids.length; o = disliked.nextSetBit(o + 1)) {
+                    user.swipe(ids[o], SwipeAction.LEFT);
+                }
+
+                // A shard written after the manifest can hold users the manifest does not know yet
+                if (from + i < users.length) {
+                    users[from + i] = user;
+                }
+            }
+
+            List<ChatRoom> rooms = new ArrayList<>();
+            int roomCount = in.readInt();
+            for (int i = 0; i < roomCount; i++) {
+                String roomId = readString(in);
+                int first = in.readInt();
+                int second = in.readInt();
+                int messages = in.readInt();
+                boolean known = first < ids.length && second < ids.length;
+                ChatRoom room = known ? new ChatRoom(roomId, ids[first], ids[second]) : null;
+                for (int j = 0; j < messages; j++) {
+                    boolean fromFirst = in.readBoolean();
+                    String content = readString(in);
+                    long timestamp = in.readLong();
+                    if (known) {
+                        room.addMessage(new Message(fromFirst ? ids[first] : ids[second], content, timestamp));
+                    }
+                }
+                if (known) {
+                    rooms.add(room);
+                }
+            }
+            return rooms;
+        }
+    }
+
+    private DataInputStream open(Path file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            in.close();
+            throw new IOException("not a snapshot file: " + file);
+        }
+        return in;
+    }
+
+    // Write to a temp file and rename, readers never see a half written shard
+    private void writeAtomically(Path file, byte[] bytes) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, bytes);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] utf8 = new byte[in.readInt()];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    // Leading zero words are skipped, a user mostly swipes on a small range of positions
+    private static void writeBitmap(DataOutputStream out, BitSet bits) throws IOException {
+        long[] words = bits.toLongArray();
+        int firstWord = bits.isEmpty() ? 0 : bits.nextSetBit(0) / 64;
+        out.writeInt(firstWord);
+        out.writeInt(words.length - firstWord);
+        for (int i = firstWord; i < words.length; i++) {
+            out.writeLong(words[i]);
+        }
+    }
+
+    private static BitSet readBitmap(DataInputStream in) throws IOException {
+        int firstWord = in.readInt();
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        BitSet bits = new BitSet();
+        BitSet stored = BitSet.valueOf(words);
+        for (int b = stored.nextSetBit(0); b >= 0; b = stored.nextSetBit(b + 1)) {
+            bits.set(firstWord * 64 + b);
+        }
+        return bits;
+    }
+}
+
 // -------------------- Main -------------------- //
 
 public class TinderClone {
@@ -819,15 +1382,11 @@ public class TinderClone {
         pref2.addInterest("Movies");
 
         // Set location for user1
-        Location location1 = new Location();
-        location1.setLatitude(1.01);
-        location1.setLongitude(1.02);
+        Location location1 = new Location(1.01, 1.02);
         profile1.setLocation(location1);
 
          // Set location for user2 (Close to user1, within 5km)
-        Location location2 = new Location();
-        location2.setLatitude(1.03);
-        location2.setLongitude(1.04);
+        Location location2 = new Location(1.03, 1.04);
         profile2.setLocation(location2);
 
         // Display user profiles
@@ -860,5 +1419,18 @@ public class TinderClone {
         
         // Display the chat room
         app.displayChatRoom("user1", "user2");
+
+        // Save a snapshot and load it back, like the app would on a restart
+        System.out.println("\n---- Snapshot ----");
+        try {
+            Path snapshotDir = Files.createTempDirectory("tinder-snapshot");
+            SnapshotManager snapshots = new SnapshotManager(app, snapshotDir, 4096);
+            System.out.println("Shards written: " + snapshots.snapshotNow());
+            System.out.println("Shards written again without changes: " + snapshots.snapshotNow());
+            snapshots.load();
+            app.displayChatRoom("user1", "user2");
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Snapshot failed: " + e.getMessage());
+        }
     }
 }
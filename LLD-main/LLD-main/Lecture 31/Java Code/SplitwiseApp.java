@@ -1,5 +1,11 @@
 import java.util.*;
-import java.text.DecimalFormat;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
 
 // Forward declarations equivalent - not needed in Java due to automatic resolution
 
@@ -9,11 +15,138 @@ enum SplitType {
     PERCENTAGE
 }
 
+// Money as a whole number of paise, so sums and splits are exact
+// (no 0.01 tolerance checks and no rounding drift across many expenses)
+final class Money implements Comparable<Money> {
+    public static final Money ZERO = new Money(0);
+    
+    private final long paise;
+    
+    private Money(long paise) {
+        this.paise = paise;
+    }
+    
+    public static Money ofPaise(long paise) {
+        return paise == 0 ? ZERO : new Money(paise);
+    }
+    
+    // Rupee amounts coming from the client are rounded to the nearest paisa once, here
+    public static Money of(double rupees) {
+        return ofPaise(Math.round(rupees * 100));
+    }
+    
+    public long toPaise() {
+        return paise;
+    }
+    
+    public double toRupees() {
+        return paise / 100.0;
+    }
+    
+    public Money plus(Money other) {
+        return ofPaise(Math.addExact(paise, other.paise));
+    }
+    
+    public Money minus(Money other) {
+        return ofPaise(Math.subtractExact(paise, other.paise));
+    }
+    
+    public Money negate() {
+        return ofPaise(-paise);
+    }
+    
+    public Money abs() {
+        return paise < 0 ? negate() : this;
+    }
+    
+    public boolean isZero() {
+        return paise == 0;
+    }
+    
+    public boolean isPositive() {
+        return paise > 0;
+    }
+    
+    public boolean isNegative() {
+        return paise < 0;
+    }
+    
+    // Split into n parts that add up exactly, the leftover paise go to the first parts
+    public Money[] allocate(int parts) {
+        long[] weights = new long[parts];
+        Arrays.fill(weights, 1);
+        return allocate(weights);
+    }
+    
+    // Split in proportion to weights that add up exactly (largest remainder method).
+    // Leftover paise go to the largest fractional parts, ties to the earlier position,
+    // so the same input always gives the same split.
+    public Money[] allocate(long[] weights) {
+        long totalWeight = 0;
+        for (long weight : weights) {
+            totalWeight += weight;
+        }
+        if (totalWeight <= 0) {
+            throw new RuntimeException("split weights must add up to more than zero");
+        }
+        
+        long[] shares = new long[weights.length];
+        long[] remainders = new long[weights.length];
+        long allocated = 0;
+        for (int i = 0; i < weights.length; i++) {
+            long product = Math.multiplyExact(paise, weights[i]);
+            shares[i] = Math.floorDiv(product, totalWeight);
+            remainders[i] = Math.floorMod(product, totalWeight);
+            allocated += shares[i];
+        }
+        
+        Integer[] order = new Integer[weights.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> remainders[x] != remainders[y] 
+            ? Long.compare(remainders[y], remainders[x]) : Integer.compare(x, y));
+        for (int k = 0; k < paise - allocated; k++) {
+            shares[order[k]]++;
+        }
+        
+        Money[] result = new Money[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            result[i] = ofPaise(shares[i]);
+        }
+        return result;
+    }
+    
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(paise, other.paise);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Money && ((Money) o).paise == paise;
+    }
+    
+    @Override
+    public int hashCode() {
+        return Long.hashCode(paise);
+    }
+    
+    // 200 -> "200", 66.67 -> "66.67"
+    @Override
+    public String toString() {
+        long rupees = Math.abs(paise) / 100;
+        long rest = Math.abs(paise) % 100;
+        String sign = paise < 0 ? "-" : "";
+        return rest == 0 ? sign + rupees : sign + rupees + "." + (rest < 10 ? "0" : "") + rest;
+    }
+}
+
 class Split {
     public String userId;
-    public double amount;
+    public Money amount;
     
-    public Split(String userId, double amount) {
+    public Split(String userId, Money amount) {
         this.userId = userId;
         this.amount = amount;
     }
@@ -26,17 +159,17 @@ interface Observer {
 
 // Strategy Pattern - Split strategies
 interface SplitStrategy {
-    List<Split> calculateSplit(double totalAmount, List<String> userIds, List<Double> values);
+    List<Split> calculateSplit(Money totalAmount, List<String> userIds, List<Double> values);
 }
 
 class EqualSplit implements SplitStrategy {
     @Override
-    public List<Split> calculateSplit(double totalAmount, List<String> userIds, List<Double> values) {
+    public List<Split> calculateSplit(Money totalAmount, List<String> userIds, List<Double> values) {
         List<Split> splits = new ArrayList<>();
-        double amountPerUser = totalAmount / userIds.size();
+        Money[] amountPerUser = totalAmount.allocate(userIds.size());
         
-        for (String userId : userIds) {
-            splits.add(new Split(userId, amountPerUser));
+        for (int i = 0; i < userIds.size(); i++) {
+            splits.add(new Split(userIds.get(i), amountPerUser[i]));
         }
         return splits;
     }
@@ -44,13 +177,22 @@ class EqualSplit implements SplitStrategy {
 
 class ExactSplit implements SplitStrategy {
     @Override
-    public List<Split> calculateSplit(double totalAmount, List<String> userIds, List<Double> values) {
+    public List<Split> calculateSplit(Money totalAmount, List<String> userIds, List<Double> values) {
         List<Split> splits = new ArrayList<>();
 
         //validations
+        if (values.size() != userIds.size()) {
+            throw new RuntimeException("exact split needs one amount per user");
+        }
         
+        Money sum = Money.ZERO;
         for (int i = 0; i < userIds.size(); i++) {
-            splits.add(new Split(userIds.get(i), values.get(i)));
+            Money amount = Money.of(values.get(i));
+            sum = sum.plus(amount);
+            splits.add(new Split(userIds.get(i), amount));
+        }
+        if (!sum.equals(totalAmount)) {
+            throw new RuntimeException("exact split amounts add up to " + sum + " instead of " + totalAmount);
         }
         return splits;
     }
@@ -58,14 +200,28 @@ class ExactSplit implements SplitStrategy {
 
 class PercentageSplit implements SplitStrategy {
     @Override
-    public List<Split> calculateSplit(double totalAmount, List<String> userIds, List<Double> values) {
+    public List<Split> calculateSplit(Money totalAmount, List<String> userIds, List<Double> values) {
         List<Split> splits = new ArrayList<>();
 
         //validations
+        if (values.size() != userIds.size()) {
+            throw new RuntimeException("percentage split needs one percentage per user");
+        }
+        
+        // Percentages in basis points (12.5% -> 1250) so they can be checked exactly
+        long[] basisPoints = new long[values.size()];
+        long totalBasisPoints = 0;
+        for (int i = 0; i < values.size(); i++) {
+            basisPoints[i] = Math.round(values.get(i) * 100);
+            totalBasisPoints += basisPoints[i];
+        }
+        if (totalBasisPoints != 10000) {
+            throw new RuntimeException("split percentages must add up to 100");
+        }
         
+        Money[] amounts = totalAmount.allocate(basisPoints);
         for (int i = 0; i < userIds.size(); i++) {
-            double amount = (totalAmount * values.get(i)) / 100.0;
-            splits.add(new Split(userIds.get(i), amount));
+            splits.add(new Split(userIds.get(i), amounts[i]));
         }
         return splits;
     }
@@ -89,17 +245,27 @@ class SplitFactory {
 
 // User class --> Concrete Observer
 class User implements Observer {
-    public static int nextUserId = 0;
+    public static AtomicInteger nextUserId = new AtomicInteger(0);
     public String userId;
     public String name;
     public String email;
-    public Map<String, Double> balances; // userId -> amount (positive = they owe you, negative = you owe them)
+    public Map<String, Money> balances; // userId -> amount (positive = they owe you, negative = you owe them)
     
     public User(String name, String email) {
-        this.userId = "user" + (++nextUserId);
+        this("user" + nextUserId.incrementAndGet(), name, email);
+    }
+    
+    // Recreates a user rebuilt from the journal, later ids continue after it
+    public User(String userId, String name, String email) {
+        this.userId = userId;
         this.name = name;
         this.email = email;
         this.balances = new HashMap<>();
+        // Only ids of our own "user<n>" form move the counter, imported ones are kept as they are
+        String suffix = userId.startsWith("user") ? userId.substring("user".length()) : "";
+        if (!suffix.isEmpty() && suffix.length() <= 9 && suffix.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            nextUserId.accumulateAndGet(Integer.parseInt(suffix), Math::max);
+        }
     }
     
     @Override
@@ -107,30 +273,32 @@ class User implements Observer {
         System.out.println("[NOTIFICATION to " + name + "]: " + message);
     }
     
-    public void updateBalance(String otherUserId, double amount) {
-        balances.put(otherUserId, balances.getOrDefault(otherUserId, 0.0) + amount);
+    public synchronized void updateBalance(String otherUserId, Money amount) {
+        Money balance = balances.getOrDefault(otherUserId, Money.ZERO).plus(amount);
         
         // Remove if balance becomes zero
-        if (Math.abs(balances.get(otherUserId)) < 0.01) {
+        if (balance.isZero()) {
             balances.remove(otherUserId);
+        } else {
+            balances.put(otherUserId, balance);
         }
     }
     
-    public double getTotalOwed() {
-        double total = 0;
-        for (Map.Entry<String, Double> balance : balances.entrySet()) {
-            if (balance.getValue() < 0) {
-                total += Math.abs(balance.getValue());
+    public synchronized Money getTotalOwed() {
+        Money total = Money.ZERO;
+        for (Map.Entry<String, Money> balance : balances.entrySet()) {
+            if (balance.getValue().isNegative()) {
+                total = total.plus(balance.getValue().abs());
             }
         }
         return total;
     }
     
-    public double getTotalOwing() {
-        double total = 0;
-        for (Map.Entry<String, Double> balance : balances.entrySet()) {
-            if (balance.getValue() > 0) {
-                total += balance.getValue();
+    public synchronized Money getTotalOwing() {
+        Money total = Money.ZERO;
+        for (Map.Entry<String, Money> balance : balances.entrySet()) {
+            if (balance.getValue().isPositive()) {
+                total = total.plus(balance.getValue());
             }
         }
         return total;
@@ -139,17 +307,17 @@ class User implements Observer {
 
 // Expense Model class
 class Expense {
-    public static int nextExpenseId = 0;
+    public static AtomicInteger nextExpenseId = new AtomicInteger(0);
     public String expenseId;
     public String description;
-    public double totalAmount;
+    public Money totalAmount;
     public String paidByUserId;
     public List<Split> splits;
     public String groupId;
     
-    public Expense(String desc, double amount, String paidBy,
+    public Expense(String desc, Money amount, String paidBy,
             List<Split> splits, String group) {
-        this.expenseId = "expense" + (++nextExpenseId);
+        this.expenseId = "expense" + nextExpenseId.incrementAndGet();
         this.description = desc;
         this.totalAmount = amount;
         this.paidByUserId = paidBy;
@@ -157,206 +325,1235 @@ class Expense {
         this.groupId = group;
     }
     
-    public Expense(String desc, double amount, String paidBy, List<Split> splits) {
+    public Expense(String desc, Money amount, String paidBy, List<Split> splits) {
         this(desc, amount, paidBy, splits, "");
     }
-}
-
-class DebtSimplifier {
-    public static Map<String, Map<String, Double>> simplifyDebts(
-        Map<String, Map<String, Double>> groupBalances) {
-        
-        // Calculate net amount for each person
-        Map<String, Double> netAmounts = new HashMap<>();
-        
-        // Initialize all users with 0
-        for (Map.Entry<String, Map<String, Double>> userBalance : groupBalances.entrySet()) {
-            netAmounts.put(userBalance.getKey(), 0.0);
+}
+
+class DebtSimplifier {
+    public static Map<String, Map<String, Money>> simplifyDebts(
+        Map<String, Map<String, Money>> groupBalances) {
+        
+        // Give every user a slot and calculate net amount (in paise) for each person
+        Map<String, Integer> slots = new HashMap<>();
+        for (String userId : groupBalances.keySet()) {
+            slots.put(userId, slots.size());
+        }
+        long[] netAmounts = new long[slots.size()];
+        
+        // Calculate net amounts
+        // We only need to process each balance once (not twice)
+        // If groupBalances[A][B] = 200, it means B owes A 200
+        // So A should receive 200 (positive) and B should pay 200 (negative)
+        for (Map.Entry<String, Map<String, Money>> userBalance : groupBalances.entrySet()) {
+            int creditor = slots.get(userBalance.getKey());
+            for (Map.Entry<String, Money> balance : userBalance.getValue().entrySet()) {
+                int debtor = slots.get(balance.getKey());
+                long amount = balance.getValue().toPaise();
+                
+                // Only process positive amounts to avoid double counting
+                if (amount > 0) {
+                    netAmounts[creditor] += amount;  // creditor receives
+                    netAmounts[debtor] -= amount;    // debtor pays
+                }
+            }
+        }
+        
+        return simplifyDebts(slots, netAmounts);
+    }
+
+    // Works directly on net positions in paise (slot -> amount), so a group that keeps them
+    // up to date does not have to rescan every pairwise balance
+    public static Map<String, Map<String, Money>> simplifyDebts(
+        Map<String, Integer> memberSlots, long[] netAmounts) {
+        
+        // Divide users into creditors and debtors
+        List<AbstractMap.SimpleEntry<String, Long>> creditors = new ArrayList<>(); // those who should receive money
+        List<AbstractMap.SimpleEntry<String, Long>> debtors = new ArrayList<>();   // those who should pay money
+        
+        for (Map.Entry<String, Integer> member : memberSlots.entrySet()) {
+            long net = netAmounts[member.getValue()];
+            if (net > 0) { // creditor
+                creditors.add(new AbstractMap.SimpleEntry<>(member.getKey(), net));
+            } else if (net < 0) { // debtor
+                debtors.add(new AbstractMap.SimpleEntry<>(member.getKey(), -net)); // store positive amount
+            }
+        }
+        
+        // Sort for better optimization (largest amounts first)
+        creditors.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        debtors.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        
+        // Create new simplified balance map
+        Map<String, Map<String, Money>> simplifiedBalances = new HashMap<>();
+        
+        // Initialize empty maps for all users
+        for (String userId : memberSlots.keySet()) {
+            simplifiedBalances.put(userId, new HashMap<>());
+        }
+        
+        // Use greedy algorithm to minimize transactions
+        int i = 0, j = 0;
+        while (i < creditors.size() && j < debtors.size()) {
+            String creditorId = creditors.get(i).getKey();
+            String debtorId = debtors.get(j).getKey();
+            long creditorAmount = creditors.get(i).getValue();
+            long debtorAmount = debtors.get(j).getValue();
+            
+            // Find the minimum amount to settle
+            long settleAmount = Math.min(creditorAmount, debtorAmount);
+            
+            // Update simplified balances
+            // debtorId owes creditorId the settleAmount
+            simplifiedBalances.get(creditorId).put(debtorId, Money.ofPaise(settleAmount));
+            simplifiedBalances.get(debtorId).put(creditorId, Money.ofPaise(-settleAmount));
+            
+            // Update remaining amounts
+            creditors.get(i).setValue(creditorAmount - settleAmount);
+            debtors.get(j).setValue(debtorAmount - settleAmount);
+            
+            // Move to next creditor or debtor if current one is settled
+            if (creditors.get(i).getValue() == 0) {
+                i++;
+            }
+            if (debtors.get(j).getValue() == 0) {
+                j++;
+            }
+        }
+        
+        return simplifiedBalances;
+    }
+}
+
+enum SimplifierType {
+    GREEDY,
+    OPTIMAL
+}
+
+// Outcome of simplifying one group's debts
+class SimplificationResult {
+    public String groupId;
+    public SimplifierType type;
+    public int transactionCount;
+    public long solveNanos;
+    
+    public SimplificationResult(String groupId, SimplifierType type, int transactionCount, long solveNanos) {
+        this.groupId = groupId;
+        this.type = type;
+        this.transactionCount = transactionCount;
+        this.solveNanos = solveNanos;
+    }
+    
+    @Override
+    public String toString() {
+        return groupId + " [" + type + "]: " + transactionCount + " transactions in " 
+            + String.format("%.3f", solveNanos / 1_000_000.0) + " ms";
+    }
+}
+
+// Minimizes the number of transactions instead of only pairing largest amounts.
+// People with n non-zero net amounts need n - k transactions when they can be split into
+// k groups that each add up to zero, so the job is to find as many zero-sum groups as possible.
+// Each zero-sum group is then settled on its own (greedy inside a group needs size - 1 transactions).
+class OptimalDebtSimplifier {
+    private static final int MAX_EXACT_MEMBERS = 18;     // DP over 2^18 subsets
+    private static final int MIN_PARALLEL_MEMBERS = 12;  // below this the DP is faster on one thread
+    private static final int MAX_HEURISTIC_PAIRS = 200000; // work limit for the large group search
+    
+    // Shared by all groups, so simplifying many groups at once does not oversubscribe the CPU
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    
+    public static ForkJoinPool getPool() {
+        return pool;
+    }
+    
+    public static Map<String, Map<String, Money>> simplifyDebts(
+        Map<String, Integer> memberSlots, long[] netAmounts) {
+        
+        List<String> ids = new ArrayList<>();
+        List<Long> amounts = new ArrayList<>();
+        for (Map.Entry<String, Integer> member : memberSlots.entrySet()) {
+            long net = netAmounts[member.getValue()];
+            if (net != 0) {
+                ids.add(member.getKey());
+                amounts.add(net);
+            }
+        }
+        
+        List<List<Integer>> parts = new ArrayList<>();
+        List<Integer> rest = pairOpposites(amounts, parts);
+        if (rest.size() <= MAX_EXACT_MEMBERS) {
+            parts.addAll(exactPartition(amounts, rest));
+        } else {
+            parts.addAll(boundedPartition(amounts, rest));
+        }
+        
+        // Settle every zero-sum part on its own, in parallel
+        List<ForkJoinTask<Map<String, Map<String, Money>>>> tasks = new ArrayList<>();
+        for (List<Integer> part : parts) {
+            tasks.add(pool.submit(() -> {
+                Map<String, Integer> slots = new HashMap<>();
+                long[] partAmounts = new long[part.size()];
+                for (int k = 0; k < part.size(); k++) {
+                    slots.put(ids.get(part.get(k)), k);
+                    partAmounts[k] = amounts.get(part.get(k));
+                }
+                return DebtSimplifier.simplifyDebts(slots, partAmounts);
+            }));
+        }
+        
+        Map<String, Map<String, Money>> simplifiedBalances = new HashMap<>();
+        for (String userId : memberSlots.keySet()) {
+            simplifiedBalances.put(userId, new HashMap<>());
+        }
+        for (ForkJoinTask<Map<String, Map<String, Money>>> task : tasks) {
+            for (Map.Entry<String, Map<String, Money>> entry : task.join().entrySet()) {
+                simplifiedBalances.get(entry.getKey()).putAll(entry.getValue());
+            }
+        }
+        return simplifiedBalances;
+    }
+    
+    // A creditor and a debtor with exactly opposite amounts always settle in one transaction
+    private static List<Integer> pairOpposites(List<Long> amounts, List<List<Integer>> parts) {
+        Map<Long, Deque<Integer>> waiting = new HashMap<>();
+        List<Integer> rest = new ArrayList<>();
+        for (int i = 0; i < amounts.size(); i++) {
+            Deque<Integer> opposite = waiting.get(-amounts.get(i));
+            if (opposite != null && !opposite.isEmpty()) {
+                parts.add(Arrays.asList(opposite.poll(), i));
+            } else {
+                waiting.computeIfAbsent(amounts.get(i), k -> new ArrayDeque<>()).add(i);
+            }
+        }
+        for (Deque<Integer> left : waiting.values()) {
+            rest.addAll(left);
+        }
+        Collections.sort(rest);
+        return rest;
+    }
+    
+    // dp[mask] = most zero-sum groups the people in mask can be split into
+    private static List<List<Integer>> exactPartition(List<Long> amounts, List<Integer> people) {
+        int n = people.size();
+        List<List<Integer>> parts = new ArrayList<>();
+        if (n == 0) {
+            return parts;
+        }
+        
+        int full = (1 << n) - 1;
+        long[] amount = new long[n];
+        for (int k = 0; k < n; k++) {
+            amount[k] = amounts.get(people.get(k));
+        }
+        long[] sum = new long[full + 1];
+        int[] dp = new int[full + 1];
+        if (n < MIN_PARALLEL_MEMBERS || pool.getParallelism() == 1) {
+            fillMasks(amount, sum, dp, 1, full + 1, -1);
+        } else {
+            // A mask only reads masks with one person fewer, so every subset size is one
+            // layer whose masks are filled in parallel; join() publishes it to the next layer
+            int chunks = pool.getParallelism() * 4;
+            int chunkSize = (full + chunks) / chunks;
+            for (int size = 1; size <= n; size++) {
+                List<ForkJoinTask<?>> layer = new ArrayList<>();
+                for (int from = 1; from <= full; from += chunkSize) {
+                    int start = from, end = Math.min(full + 1, from + chunkSize), bits = size;
+                    layer.add(pool.submit(() -> fillMasks(amount, sum, dp, start, end, bits)));
+                }
+                for (ForkJoinTask<?> task : layer) {
+                    task.join();
+                }
+            }
+        }
+        
+        // Walk back from the full set, removing one person at a time without losing groups.
+        // Read forward, the order fills one zero-sum group after another.
+        int[] order = new int[n];
+        int mask = full;
+        for (int pos = n - 1; pos >= 0; pos--) {
+            int target = dp[mask] - (sum[mask] == 0 ? 1 : 0);
+            for (int rest = mask; rest != 0; rest &= rest - 1) {
+                int bit = Integer.lowestOneBit(rest);
+                if (dp[mask ^ bit] == target) {
+                    order[pos] = Integer.numberOfTrailingZeros(bit);
+                    mask ^= bit;
+                    break;
+                }
+            }
+        }
+        List<Integer> current = new ArrayList<>();
+        long running = 0;
+        for (int k = 0; k < n; k++) {
+            current.add(people.get(order[k]));
+            running += amounts.get(people.get(order[k]));
+            if (running == 0) {
+                parts.add(current);
+                current = new ArrayList<>();
+            }
+        }
+        return parts;
+    }
+    
+    // Fills masks [from, to) that hold exactly size people, or all of them in order when size is -1
+    private static void fillMasks(long[] amount, long[] sum, int[] dp, int from, int to, int size) {
+        for (int mask = from; mask < to; mask++) {
+            if (size >= 0 && Integer.bitCount(mask) != size) {
+                continue;
+            }
+            sum[mask] = sum[mask & (mask - 1)] + amount[Integer.numberOfTrailingZeros(mask)];
+            int best = 0;
+            for (int rest = mask; rest != 0; rest &= rest - 1) {
+                best = Math.max(best, dp[mask ^ Integer.lowestOneBit(rest)]);
+            }
+            dp[mask] = best + (sum[mask] == 0 ? 1 : 0);
+        }
+    }
+    
+    // Too many people for the exact search: pull out zero-sum triples while the work
+    // budget lasts, everyone left over forms one last group
+    private static List<List<Integer>> boundedPartition(List<Long> amounts, List<Integer> people) {
+        List<List<Integer>> parts = new ArrayList<>();
+        Map<Long, Deque<Integer>> byAmount = new HashMap<>();
+        for (int person : people) {
+            byAmount.computeIfAbsent(amounts.get(person), k -> new ArrayDeque<>()).add(person);
+        }
+        Set<Integer> used = new HashSet<>();
+        int work = 0;
+        
+        outer:
+        for (int a = 0; a < people.size(); a++) {
+            int first = people.get(a);
+            if (used.contains(first)) {
+                continue;
+            }
+            for (int b = a + 1; b < people.size(); b++) {
+                if (++work > MAX_HEURISTIC_PAIRS) {
+                    break outer;
+                }
+                int second = people.get(b);
+                if (used.contains(second)) {
+                    continue;
+                }
+                Deque<Integer> candidates = byAmount.get(-(amounts.get(first) + amounts.get(second)));
+                if (candidates == null) {
+                    continue;
+                }
+                for (int third : candidates) {
+                    if (third != first && third != second && !used.contains(third)) {
+                        parts.add(Arrays.asList(first, second, third));
+                        used.add(first);
+                        used.add(second);
+                        used.add(third);
+                        continue outer;
+                    }
+                }
+            }
+        }
+        
+        List<Integer> leftover = new ArrayList<>();
+        for (int person : people) {
+            if (!used.contains(person)) {
+                leftover.add(person);
+            }
+        }
+        if (!leftover.isEmpty()) {
+            parts.add(leftover);
+        }
+        return parts;
+    }
+}
+
+// -------------------- Expense Journal --------------------
+// Every change to a group (creation, members, balances) is fsynced to a log file before the
+// group applies it in memory, so groups can be rebuilt after a restart by replaying the log.
+
+enum JournalRecordType {
+    MEMBER_ADDED,
+    MEMBER_REMOVED,
+    EXPENSE,
+    SETTLEMENT,
+    BALANCES_RESET,  // written after debt simplification, replaces all balances of the group
+    GROUP_CREATED,   // description = group name
+    EXPENSE_BATCH    // bulk import, (payer, debtor) pairs added to the balances all at once
+}
+
+class JournalRecord {
+    public JournalRecordType type;
+    public String groupId;
+    public String userId;                               // member / payer / settlement sender
+    public String description = "";                     // expense description / member name / group name
+    public List<String> otherUserIds = new ArrayList<>(); // split users / settlement receiver / (creditor, debtor) pairs for a reset or batch / member email
+    public List<Long> amounts = new ArrayList<>();        // in paise, one per split user / settlement / pair
+    
+    public JournalRecord(JournalRecordType type, String groupId, String userId) {
+        this.type = type;
+        this.groupId = groupId;
+        this.userId = userId;
+    }
+    
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type.ordinal());
+        out.writeUTF(groupId);
+        out.writeUTF(userId);
+        out.writeUTF(description);
+        out.writeInt(otherUserIds.size());
+        for (String other : otherUserIds) {
+            out.writeUTF(other);
+        }
+        out.writeInt(amounts.size());
+        for (long amount : amounts) {
+            out.writeLong(amount);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    public static JournalRecord decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        JournalRecord record = new JournalRecord(JournalRecordType.values()[in.readByte()], in.readUTF(), in.readUTF());
+        record.description = in.readUTF();
+        int others = in.readInt();
+        for (int i = 0; i < others; i++) {
+            record.otherUserIds.add(in.readUTF());
+        }
+        int amounts = in.readInt();
+        for (int i = 0; i < amounts; i++) {
+            record.amounts.add(in.readLong());
+        }
+        return record;
+    }
+}
+
+// Balances of one group as rebuilt from the journal (amounts in paise)
+class GroupLedger {
+    public String groupId;
+    public String name = "";
+    public Set<String> members = new LinkedHashSet<>();
+    public Map<String, String> memberNames = new HashMap<>();  // enough to recreate the User after a restart
+    public Map<String, String> memberEmails = new HashMap<>();
+    public Map<String, Map<String, Long>> balances = new HashMap<>(); // same layout as Group.groupBalances
+    
+    public GroupLedger(String groupId) {
+        this.groupId = groupId;
+    }
+    
+    public void apply(JournalRecord record) {
+        switch (record.type) {
+            case GROUP_CREATED:
+                name = record.description;
+                break;
+            case MEMBER_ADDED:
+                members.add(record.userId);
+                memberNames.put(record.userId, record.description);
+                memberEmails.put(record.userId, record.otherUserIds.isEmpty() ? "" : record.otherUserIds.get(0));
+                balances.putIfAbsent(record.userId, new HashMap<>());
+                break;
+            case MEMBER_REMOVED:
+                members.remove(record.userId);
+                memberNames.remove(record.userId);
+                memberEmails.remove(record.userId);
+                balances.remove(record.userId);
+                for (Map<String, Long> memberBalances : balances.values()) {
+                    memberBalances.remove(record.userId);
+                }
+                break;
+            case EXPENSE:
+            case SETTLEMENT:
+                for (int i = 0; i < record.otherUserIds.size(); i++) {
+                    transfer(record.userId, record.otherUserIds.get(i), record.amounts.get(i));
+                }
+                break;
+            case BALANCES_RESET:
+                for (Map<String, Long> memberBalances : balances.values()) {
+                    memberBalances.clear();
+                }
+                for (int i = 0; i < record.amounts.size(); i++) {
+                    transfer(record.otherUserIds.get(2 * i), record.otherUserIds.get(2 * i + 1), record.amounts.get(i));
+                }
+                break;
+            case EXPENSE_BATCH:
+                for (int i = 0; i < record.amounts.size(); i++) {
+                    transfer(record.otherUserIds.get(2 * i), record.otherUserIds.get(2 * i + 1), record.amounts.get(i));
+                }
+                break;
+        }
+    }
+    
+    // Same rule as Group.updateGroupBalance
+    private void transfer(String fromUserId, String toUserId, long paise) {
+        add(fromUserId, toUserId, paise);
+        add(toUserId, fromUserId, -paise);
+    }
+    
+    private void add(String userId, String otherUserId, long paise) {
+        Map<String, Long> userBalances = balances.computeIfAbsent(userId, k -> new HashMap<>());
+        long balance = userBalances.getOrDefault(otherUserId, 0L) + paise;
+        if (balance == 0) {
+            userBalances.remove(otherUserId);
+        } else {
+            userBalances.put(otherUserId, balance);
+        }
+    }
+}
+
+// Append-only journal file with group commit: callers only queue their record,
+// a single writer thread writes whatever has queued up and fsyncs once per batch.
+// A compact snapshot of all group balances (plus the log position it covers) is written
+// from time to time, so a restart only replays the log written after it.
+//
+// journal.log  : [length][crc32][record] ...
+// snapshot.bin : magic, log offset, groups with name, members and balances
+class ExpenseJournal {
+    private static final int SNAPSHOT_MAGIC = 0x53504C32; // "SPL2"
+    private static final int MAX_BATCH = 512;
+    
+    private static class PendingWrite {
+        byte[] frame;
+        CompletableFuture<Long> durable = new CompletableFuture<>();
+        
+        PendingWrite(byte[] frame) {
+            this.frame = frame;
+        }
+    }
+    
+    private final Path logFile;
+    private final Path snapshotFile;
+    private final FileChannel channel;
+    private final BlockingQueue<PendingWrite> queue;
+    private final Thread writer;
+    private volatile long durableOffset;
+    private volatile boolean closed;  // written under this, so no append slips in after the writer exits
+    private volatile boolean broken;  // a failed write could not be cut off the file, nothing more may be appended
+    private ScheduledExecutorService snapshotter;
+    private final Object snapshotLock = new Object(); // one snapshot at a time, separate from appends
+    
+    public ExpenseJournal(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.logFile = dir.resolve("journal.log");
+        this.snapshotFile = dir.resolve("snapshot.bin");
+        this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, 
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        
+        // Drop a half written record left by a crash, new records go right after the last good one
+        long validEnd = scan(readSnapshotOffset(), null);
+        channel.truncate(validEnd);
+        channel.position(validEnd);
+        this.durableOffset = validEnd;
+        
+        this.queue = new LinkedBlockingQueue<>();
+        this.writer = new Thread(this::writeLoop, "expense-journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+    
+    // Queues the record, the future completes once it is fsynced
+    public CompletableFuture<Long> append(JournalRecord record) {
+        byte[] payload;
+        try {
+            payload = record.encode();
+        } catch (IOException e) {
+            throw new RuntimeException("could not encode journal record", e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.length);
+        frame.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        PendingWrite write = new PendingWrite(frame.array());
+        enqueue(write);
+        return write.durable;
+    }
+    
+    private synchronized void enqueue(PendingWrite write) {
+        if (closed) {
+            throw new RuntimeException("journal is closed");
+        }
+        if (broken) {
+            throw new RuntimeException("journal is unusable after a failed write");
+        }
+        queue.add(write);
+    }
+    
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                if (broken) {
+                    throw new IOException("journal is unusable after a failed write");
+                }
+                
+                for (PendingWrite write : batch) {
+                    ByteBuffer buffer = ByteBuffer.wrap(write.frame);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                channel.force(false); // one fsync for the whole batch
+                durableOffset = channel.position();
+                for (PendingWrite write : batch) {
+                    write.durable.complete(durableOffset);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // Part of the batch may have reached the file. Cut it off, otherwise the next
+                // batch lands after a torn frame and replay stops before it.
+                if (!broken) {
+                    try {
+                        channel.truncate(durableOffset);
+                        channel.position(durableOffset);
+                    } catch (IOException truncateFailed) {
+                        broken = true;
+                    }
+                }
+                for (PendingWrite write : batch) {
+                    write.durable.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+    
+    // Waits until everything appended so far is on disk
+    public void flush() {
+        PendingWrite marker = new PendingWrite(new byte[0]);
+        enqueue(marker);
+        marker.durable.join();
+    }
+    
+    public void startPeriodicSnapshots(long periodMillis) {
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "expense-journal-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                System.out.println("Journal snapshot failed: " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    // Folds the log written since the last snapshot into a new snapshot.
+    // Built from the journal itself, not from live groups, so it always matches its log offset.
+    // Rebuilding reads the file through its own channel, so it holds snapshotLock only and
+    // appends keep flowing while it runs.
+    public long writeSnapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long upTo = durableOffset;
+            Map<String, GroupLedger> ledgers = rebuild(upTo);
+        
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(upTo);
+            out.writeInt(ledgers.size());
+            for (GroupLedger ledger : ledgers.values()) {
+                out.writeUTF(ledger.groupId);
+                out.writeUTF(ledger.name);
+                out.writeInt(ledger.members.size());
+                for (String member : ledger.members) {
+                    out.writeUTF(member);
+                    out.writeUTF(ledger.memberNames.getOrDefault(member, ""));
+                    out.writeUTF(ledger.memberEmails.getOrDefault(member, ""));
+                }
+                List<String> pairs = new ArrayList<>();
+                List<Long> amounts = new ArrayList<>();
+                for (Map.Entry<String, Map<String, Long>> creditor : ledger.balances.entrySet()) {
+                    for (Map.Entry<String, Long> debtor : creditor.getValue().entrySet()) {
+                        if (debtor.getValue() > 0) {
+                            pairs.add(creditor.getKey());
+                            pairs.add(debtor.getKey());
+                            amounts.add(debtor.getValue());
+                        }
+                    }
+                }
+                out.writeInt(amounts.size());
+                for (int i = 0; i < amounts.size(); i++) {
+                    out.writeUTF(pairs.get(2 * i));
+                    out.writeUTF(pairs.get(2 * i + 1));
+                    out.writeLong(amounts.get(i));
+                }
+            }
+            out.flush();
+        
+            Path tmp = snapshotFile.resolveSibling("snapshot.bin.tmp");
+            Files.write(tmp, bytes.toByteArray());
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return upTo;
+        }
+    }
+    
+    public Map<String, GroupLedger> rebuild() throws IOException {
+        return rebuild(durableOffset);
+    }
+    
+    // Snapshot + log tail, each group's records are replayed in parallel with other groups
+    private Map<String, GroupLedger> rebuild(long upTo) throws IOException {
+        Map<String, GroupLedger> ledgers = new ConcurrentHashMap<>();
+        long from = readSnapshot(ledgers);
+        
+        Map<String, List<JournalRecord>> recordsByGroup = new HashMap<>();
+        scan(from, record -> recordsByGroup.computeIfAbsent(record.groupId, k -> new ArrayList<>()).add(record), upTo);
+        
+        recordsByGroup.entrySet().parallelStream().forEach(entry -> {
+            GroupLedger ledger = ledgers.computeIfAbsent(entry.getKey(), GroupLedger::new);
+            for (JournalRecord record : entry.getValue()) {
+                ledger.apply(record);
+            }
+        });
+        return ledgers;
+    }
+    
+    private long scan(long from, java.util.function.Consumer<JournalRecord> consumer) throws IOException {
+        return scan(from, consumer, Long.MAX_VALUE);
+    }
+    
+    // Reads records from the given offset, stops at the first incomplete or corrupt one.
+    // Returns the offset right after the last good record.
+    private long scan(long from, java.util.function.Consumer<JournalRecord> consumer, long upTo) throws IOException {
+        long offset = from;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(FileChannel.open(logFile, StandardOpenOption.READ).position(from))))) {
+            while (offset + 8 <= upTo) {
+                int length;
+                int checksum;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || offset + 8 + length > upTo) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                if (consumer != null) {
+                    consumer.accept(JournalRecord.decode(payload));
+                }
+                offset += 8 + length;
+            }
+        }
+        return offset;
+    }
+    
+    private long readSnapshotOffset() throws IOException {
+        return readSnapshot(new HashMap<>());
+    }
+    
+    // Fills ledgers from the snapshot and returns the log offset it covers (0 without a snapshot)
+    private long readSnapshot(Map<String, GroupLedger> ledgers) throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("not a journal snapshot: " + snapshotFile);
+            }
+            long offset = in.readLong();
+            int groupCount = in.readInt();
+            for (int g = 0; g < groupCount; g++) {
+                GroupLedger ledger = new GroupLedger(in.readUTF());
+                ledger.name = in.readUTF();
+                int members = in.readInt();
+                for (int i = 0; i < members; i++) {
+                    JournalRecord member = new JournalRecord(JournalRecordType.MEMBER_ADDED, ledger.groupId, in.readUTF());
+                    member.description = in.readUTF();
+                    member.otherUserIds.add(in.readUTF());
+                    ledger.apply(member);
+                }
+                JournalRecord reset = new JournalRecord(JournalRecordType.BALANCES_RESET, ledger.groupId, "");
+                int debts = in.readInt();
+                for (int i = 0; i < debts; i++) {
+                    reset.otherUserIds.add(in.readUTF());
+                    reset.otherUserIds.add(in.readUTF());
+                    reset.amounts.add(in.readLong());
+                }
+                ledger.apply(reset);
+                ledgers.put(ledger.groupId, ledger);
+            }
+            return offset;
+        }
+    }
+    
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        if (snapshotter != null) {
+            snapshotter.shutdown();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
+
+// -------------------- Cross-Group Balance Index --------------------
+
+// Observer Pattern - told about every change to a pairwise balance
+interface BalanceListener {
+    // debtor now owes creditor `paise` more (negative = less), groupId is "" for individual expenses
+    void onBalanceChange(String groupId, String creditorId, String debtorId, long paise);
+}
+
+// Every user's position across all groups and individual expenses, kept up to date from the
+// balance changes instead of walking every group when someone asks
+class UserBalanceIndex implements BalanceListener {
+    private static class UserEntry {
+        long owedToUser;  // sum of what others owe this user
+        long userOwes;    // sum of what this user owes others
+        Map<String, Long> counterparties = new HashMap<>(); // other userId -> paise (positive = they owe this user)
+        TreeSet<String> byAmount = new TreeSet<>((a, b) -> {
+            int cmp = Long.compare(Math.abs(counterparties.get(b)), Math.abs(counterparties.get(a)));
+            return cmp != 0 ? cmp : a.compareTo(b);
+        });
+    }
+    
+    private final Map<String, UserEntry> entries = new ConcurrentHashMap<>();
+    
+    @Override
+    public void onBalanceChange(String groupId, String creditorId, String debtorId, long paise) {
+        if (paise == 0) {
+            return;
+        }
+        adjust(creditorId, debtorId, paise);
+        adjust(debtorId, creditorId, -paise);
+    }
+    
+    private void adjust(String userId, String otherUserId, long paise) {
+        UserEntry entry = entries.computeIfAbsent(userId, k -> new UserEntry());
+        synchronized (entry) {
+            long before = entry.counterparties.getOrDefault(otherUserId, 0L);
+            long after = before + paise;
+            if (before != 0) {
+                entry.byAmount.remove(otherUserId); // must go before the amount changes
+            }
+            if (after == 0) {
+                entry.counterparties.remove(otherUserId);
+            } else {
+                entry.counterparties.put(otherUserId, after);
+                entry.byAmount.add(otherUserId);
+            }
+            entry.owedToUser += Math.max(after, 0) - Math.max(before, 0);
+            entry.userOwes += Math.max(-after, 0) - Math.max(-before, 0);
+        }
+    }
+    
+    // Positive = others owe this user overall
+    public Money getNetBalance(String userId) {
+        UserEntry entry = entries.get(userId);
+        if (entry == null) {
+            return Money.ZERO;
+        }
+        synchronized (entry) {
+            return Money.ofPaise(entry.owedToUser - entry.userOwes);
+        }
+    }
+    
+    public Money getTotalOwed(String userId) {
+        UserEntry entry = entries.get(userId);
+        if (entry == null) {
+            return Money.ZERO;
+        }
+        synchronized (entry) {
+            return Money.ofPaise(entry.userOwes);
+        }
+    }
+    
+    public Money getTotalOwing(String userId) {
+        UserEntry entry = entries.get(userId);
+        if (entry == null) {
+            return Money.ZERO;
+        }
+        synchronized (entry) {
+            return Money.ofPaise(entry.owedToUser);
+        }
+    }
+    
+    // The k people with the largest balance against this user (positive = they owe this user)
+    public List<Map.Entry<String, Money>> getTopCounterparties(String userId, int k) {
+        List<Map.Entry<String, Money>> top = new ArrayList<>();
+        UserEntry entry = entries.get(userId);
+        if (entry == null) {
+            return top;
+        }
+        synchronized (entry) {
+            for (String other : entry.byAmount) {
+                if (top.size() == k) {
+                    break;
+                }
+                top.add(new AbstractMap.SimpleEntry<>(other, Money.ofPaise(entry.counterparties.get(other))));
+            }
+        }
+        return top;
+    }
+}
+
+// -------------------- Notification Outbox --------------------
+
+// Groups drop their notifications here and return straight away, a background
+// dispatcher delivers them to the observers in batches
+class NotificationOutbox {
+    private static final int MAX_SEPARATE_MESSAGES = 3; // more than this per user in one batch gets coalesced
+    
+    private static class Event {
+        final String source;
+        final List<Observer> recipients; // immutable, shared with the group until its membership changes
+        final String message;
+        
+        Event(String source, List<Observer> recipients, String message) {
+            this.source = source;
+            this.recipients = recipients;
+            this.message = message;
+        }
+    }
+    
+    // Notifications that did not fit in the queue, folded per source and then per recipient,
+    // so a message to one member never hides what the others missed. Only changed inside
+    // overflow.compute; once remove() hands it to the dispatcher nothing touches it again.
+    private static class Overflow {
+        final Map<Observer, String> latestMessage = new LinkedHashMap<>();
+        final Map<Observer, Integer> missedCount = new HashMap<>();
+        int published; // publish calls folded in, what accepted and delivered count
+    }
+    
+    private final BlockingQueue<Event> queue;
+    private final int batchSize;
+    private final Map<String, Overflow> overflow = new ConcurrentHashMap<>();
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+    
+    private long accepted;  // guarded by this, queued or folded into overflow
+    private long delivered; // guarded by this
+    private long dropped;   // guarded by this, folded into overflow
+    
+    public NotificationOutbox(int capacity, int batchSize) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.dispatcher = new Thread(this::dispatchLoop, "notification-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+    
+    // Never blocks - when the queue is full the event is folded into per-recipient counters
+    // of its source (a group id, names can repeat)
+    public void publish(String source, List<Observer> recipients, String message) {
+        if (recipients.isEmpty()) {
+            return;
         }
-        
-        // Calculate net amounts
-        // We only need to process each balance once (not twice)
-        // If groupBalances[A][B] = 200, it means B owes A 200
-        // So A should receive 200 (positive) and B should pay 200 (negative)
-        for (Map.Entry<String, Map<String, Double>> userBalance : groupBalances.entrySet()) {
-            String creditorId = userBalance.getKey();
-            for (Map.Entry<String, Double> balance : userBalance.getValue().entrySet()) {
-                String debtorId = balance.getKey();
-                double amount = balance.getValue();
-                
-                // Only process positive amounts to avoid double counting
-                if (amount > 0) {
-                    netAmounts.put(creditorId, netAmounts.get(creditorId) + amount);  // creditor receives
-                    netAmounts.put(debtorId, netAmounts.get(debtorId) - amount);    // debtor pays
+        synchronized (this) {
+            accepted++;
+            if (queue.offer(new Event(source, recipients, message))) {
+                return;
+            }
+            dropped++;
+        }
+        overflow.compute(source, (k, missed) -> {
+            Overflow folded = missed == null ? new Overflow() : missed;
+            folded.published++;
+            for (Observer recipient : recipients) {
+                folded.latestMessage.put(recipient, message);
+                folded.missedCount.merge(recipient, 1, Integer::sum);
+            }
+            return folded;
+        });
+    }
+    
+    private void dispatchLoop() {
+        List<Event> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty() || !overflow.isEmpty()) {
+            int handled = 0;
+            try {
+                Event first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
                 }
+                // Overflowed notifications are newer than anything still queued, so they go out
+                // once the queue is empty - also when the poll timed out with nothing queued
+                List<Overflow> missed = queue.isEmpty() ? takeOverflow() : Collections.emptyList();
+                if (batch.isEmpty() && missed.isEmpty()) {
+                    continue;
+                }
+                handled = batch.size();
+                for (Overflow folded : missed) {
+                    handled += folded.published;
+                }
+                deliver(batch, missed);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Notification delivery failed: " + e.getMessage());
             }
+            synchronized (this) {
+                delivered += handled;
+                notifyAll();
+            }
+            batch.clear();
         }
-        
-        // Divide users into creditors and debtors
-        List<AbstractMap.SimpleEntry<String, Double>> creditors = new ArrayList<>(); // those who should receive money
-        List<AbstractMap.SimpleEntry<String, Double>> debtors = new ArrayList<>();   // those who should pay money
-        
-        for (Map.Entry<String, Double> net : netAmounts.entrySet()) {
-            if (net.getValue() > 0.01) { // creditor
-                creditors.add(new AbstractMap.SimpleEntry<>(net.getKey(), net.getValue()));
-            } else if (net.getValue() < -0.01) { // debtor
-                debtors.add(new AbstractMap.SimpleEntry<>(net.getKey(), -net.getValue())); // store positive amount
+    }
+    
+    // remove() hands each source's latest Overflow to exactly one caller, a publish racing
+    // with it starts a new one that the next round picks up
+    private List<Overflow> takeOverflow() {
+        List<Overflow> taken = new ArrayList<>();
+        for (String source : overflow.keySet()) {
+            Overflow missed = overflow.remove(source);
+            if (missed != null) {
+                taken.add(missed);
             }
         }
-        
-        // Sort for better optimization (largest amounts first)
-        creditors.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
-        debtors.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
-        
-        // Create new simplified balance map
-        Map<String, Map<String, Double>> simplifiedBalances = new HashMap<>();
-        
-        // Initialize empty maps for all users
-        for (Map.Entry<String, Map<String, Double>> userBalance : groupBalances.entrySet()) {
-            simplifiedBalances.put(userBalance.getKey(), new HashMap<>());
+        return taken;
+    }
+    
+    private void deliver(List<Event> batch, List<Overflow> overflowed) {
+        // Group the batch by recipient, keeping the order each user sees
+        Map<Observer, List<String>> perUser = new LinkedHashMap<>();
+        Map<Observer, Integer> updateCounts = new HashMap<>();
+        for (Event event : batch) {
+            for (Observer recipient : event.recipients) {
+                perUser.computeIfAbsent(recipient, k -> new ArrayList<>()).add(event.message);
+                updateCounts.merge(recipient, 1, Integer::sum);
+            }
+        }
+        for (Overflow missed : overflowed) {
+            for (Map.Entry<Observer, String> latest : missed.latestMessage.entrySet()) {
+                perUser.computeIfAbsent(latest.getKey(), k -> new ArrayList<>()).add(latest.getValue());
+                updateCounts.merge(latest.getKey(), missed.missedCount.get(latest.getKey()), Integer::sum);
+            }
         }
         
-        // Use greedy algorithm to minimize transactions
-        int i = 0, j = 0;
-        while (i < creditors.size() && j < debtors.size()) {
-            String creditorId = creditors.get(i).getKey();
-            String debtorId = debtors.get(j).getKey();
-            double creditorAmount = creditors.get(i).getValue();
-            double debtorAmount = debtors.get(j).getValue();
-            
-            // Find the minimum amount to settle
-            double settleAmount = Math.min(creditorAmount, debtorAmount);
-            
-            // Update simplified balances
-            // debtorId owes creditorId the settleAmount
-            simplifiedBalances.get(creditorId).put(debtorId, settleAmount);
-            simplifiedBalances.get(debtorId).put(creditorId, -settleAmount);
-            
-            // Update remaining amounts
-            creditors.get(i).setValue(creditors.get(i).getValue() - settleAmount);
-            debtors.get(j).setValue(debtors.get(j).getValue() - settleAmount);
-            
-            // Move to next creditor or debtor if current one is settled
-            if (creditors.get(i).getValue() < 0.01) {
-                i++;
+        for (Map.Entry<Observer, List<String>> entry : perUser.entrySet()) {
+            List<String> messages = entry.getValue();
+            int updates = updateCounts.get(entry.getKey());
+            if (updates == messages.size() && updates <= MAX_SEPARATE_MESSAGES) {
+                for (String message : messages) {
+                    entry.getKey().update(message);
+                }
+            } else {
+                entry.getKey().update(updates + " new updates, latest: " + messages.get(messages.size() - 1));
             }
-            if (debtors.get(j).getValue() < 0.01) {
-                j++;
+        }
+    }
+    
+    // Wait until everything published so far has been delivered, folded overflow included
+    public synchronized void flush() {
+        long target = accepted;
+        while (delivered < target && dispatcher.isAlive()) {
+            try {
+                wait(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             }
         }
-        
-        return simplifiedBalances;
+    }
+    
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+    
+    public void close() {
+        flush();
+        running = false;
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
 // Group class --> Concrete Observable
+// Every group guards its own state (synchronized methods), so expenses in
+// different groups run in parallel and only the same group's writes queue up
 class Group {
     private User getUserByuserId(String userId) {
-        User user = null;
-
-        for(User member : members) {
-            if(member.userId.equals(userId)) {
-                user = member;
-            }
-        }
-        return user;
+        return members.get(userId);
     }
     
-    public static int nextGroupId = 0;
+    public static AtomicInteger nextGroupId = new AtomicInteger(0);
     public String groupId;
     public String name;
-    public List<User> members; //observers
+    public Map<String, User> members; // memberId -> observer, in joining order
     public Map<String, Expense> groupExpenses; // Group's own expense book
-    public Map<String, Map<String, Double>> groupBalances; // memberId -> {otherMemberId -> balance}
+    public Map<String, Map<String, Money>> groupBalances; // memberId -> {otherMemberId -> balance}
+    
+    // Net position of every member, kept up to date on each balance change
+    // (positive = gets money back, negative = owes money)
+    private Map<String, Integer> memberSlots; // memberId -> index in netBalances
+    private Deque<Integer> freeSlots;         // slots of members who left
+    private long[] netBalances;               // in paise
+    
+    private ExpenseJournal journal; // null when journaling is off
+    private BalanceListener balanceListener; // null when nobody listens
+    private NotificationOutbox outbox; // null = notify members synchronously
+    private volatile List<Observer> observers = Collections.emptyList(); // immutable copy handed to the outbox
     
     public Group(String name) {
-        this.groupId = "group" + (++nextGroupId);
+        this("group" + nextGroupId.incrementAndGet(), name);
+    }
+    
+    // Recreates a group rebuilt from the journal, later ids continue after it
+    public Group(String groupId, String name) {
+        this.groupId = groupId;
         this.name = name;
-        this.members = new ArrayList<>();
+        // Only ids of our own "group<n>" form move the counter, imported ones are kept as they are
+        String suffix = groupId.startsWith("group") ? groupId.substring("group".length()) : "";
+        if (!suffix.isEmpty() && suffix.length() <= 9 && suffix.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            nextGroupId.accumulateAndGet(Integer.parseInt(suffix), Math::max);
+        }
+        this.members = new LinkedHashMap<>();
         this.groupExpenses = new HashMap<>();
         this.groupBalances = new HashMap<>();
+        this.memberSlots = new HashMap<>();
+        this.freeSlots = new ArrayDeque<>();
+        this.netBalances = new long[4];
     }
     
-    public void addMember(User user) {
-        members.add(user);
+    public synchronized void addMember(User user) {
+        journal(memberAdded(user));
+        members.put(user.userId, user);
 
         // Initialize balance map for new member
         groupBalances.put(user.userId, new HashMap<>());
+        
+        // Give the member a slot in the net balance vector
+        int slot = freeSlots.isEmpty() ? memberSlots.size() : freeSlots.poll();
+        if (slot >= netBalances.length) {
+            netBalances = Arrays.copyOf(netBalances, netBalances.length * 2);
+        }
+        netBalances[slot] = 0;
+        memberSlots.put(user.userId, slot);
+        observers = Collections.unmodifiableList(new ArrayList<>(members.values()));
         System.out.println(user.name + " added to group " + name);
     }
     
-    public boolean removeMember(String userId) {    
+    public synchronized boolean removeMember(String userId) {    
         // Check if user can be removed or not
         if(!canUserLeaveGroup(userId)) {
             System.out.println("\nUser not allowed to leave group without clearing expenses");
             return false;
         }
+        journal(new JournalRecord(JournalRecordType.MEMBER_REMOVED, groupId, userId));
         
         // Remove from observers
-        members.removeIf(user -> user.userId.equals(userId));
+        members.remove(userId);
+        observers = Collections.unmodifiableList(new ArrayList<>(members.values()));
         
         // Remove from group balances
         groupBalances.remove(userId);
+        freeSlots.push(memberSlots.remove(userId));
         
         // Remove this user from other members' balance maps
-        for (Map.Entry<String, Map<String, Double>> memberBalance : groupBalances.entrySet()) {
+        for (Map.Entry<String, Map<String, Money>> memberBalance : groupBalances.entrySet()) {
             memberBalance.getValue().remove(userId);
         }
         return true;
     }
     
-    public void notifyMembers(String message) {
-        for (Observer observer : members) {
+    public synchronized void notifyMembers(String message) {
+        if (outbox != null) {
+            outbox.publish(groupId, observers, message);
+            return;
+        }
+        for (Observer observer : members.values()) {
             observer.update(message);
         }
     }
+    
+    public synchronized void setOutbox(NotificationOutbox outbox) {
+        this.outbox = outbox;
+    }
 
-    public boolean isMember(String userId) {
+    public synchronized boolean isMember(String userId) {
         return groupBalances.containsKey(userId);
     }
     
     // Update balance within group
-    public void updateGroupBalance(String fromUserId, String toUserId, double amount) {
-        groupBalances.get(fromUserId).put(toUserId, 
-            groupBalances.get(fromUserId).getOrDefault(toUserId, 0.0) + amount);
-        groupBalances.get(toUserId).put(fromUserId, 
-            groupBalances.get(toUserId).getOrDefault(fromUserId, 0.0) - amount);
+    public synchronized void updateGroupBalance(String fromUserId, String toUserId, Money amount) {
+        Money fromBalance = groupBalances.get(fromUserId).getOrDefault(toUserId, Money.ZERO).plus(amount);
+        Money toBalance = groupBalances.get(toUserId).getOrDefault(fromUserId, Money.ZERO).minus(amount);
         
         // Remove if balance becomes zero
-        if (Math.abs(groupBalances.get(fromUserId).get(toUserId)) < 0.01) {
+        if (fromBalance.isZero()) {
             groupBalances.get(fromUserId).remove(toUserId);
+        } else {
+            groupBalances.get(fromUserId).put(toUserId, fromBalance);
         }
-        if (Math.abs(groupBalances.get(toUserId).get(fromUserId)) < 0.01) {
+        if (toBalance.isZero()) {
             groupBalances.get(toUserId).remove(fromUserId);
+        } else {
+            groupBalances.get(toUserId).put(fromUserId, toBalance);
+        }
+        
+        netBalances[memberSlots.get(fromUserId)] += amount.toPaise();
+        netBalances[memberSlots.get(toUserId)] -= amount.toPaise();
+        
+        if (balanceListener != null) {
+            balanceListener.onBalanceChange(groupId, fromUserId, toUserId, amount.toPaise());
         }
     }
     
     // Check if user can leave group.
-    public boolean canUserLeaveGroup(String userId) {
+    public synchronized boolean canUserLeaveGroup(String userId) {
         if (!isMember(userId)) {
             throw new RuntimeException("user is not a part of this group");
         }
         
         // Check if user has any outstanding balance with other group members
-        Map<String, Double> userBalanceSheet = groupBalances.get(userId);
-        for (Map.Entry<String, Double> balance : userBalanceSheet.entrySet()) {
-            if (Math.abs(balance.getValue()) > 0.01) {
-                return false; // Has outstanding balance
-            }
-        }
-        return true;
+        // (zero balances are never kept in the map)
+        return groupBalances.get(userId).isEmpty();
     }
     
     // Get user's balance within this group
-    public Map<String, Double> getUserGroupBalances(String userId) {
+    public synchronized Map<String, Money> getUserGroupBalances(String userId) {
+        if (!isMember(userId)) {
+            throw new RuntimeException("user is not a part of this group");
+        }
+        return new HashMap<>(groupBalances.get(userId)); // copy, the live map is guarded by this group
+    }
+    
+    // Net position of user in this group (positive = gets back, negative = owes)
+    public synchronized Money getNetBalance(String userId) {
         if (!isMember(userId)) {
             throw new RuntimeException("user is not a part of this group");
         }
-        return groupBalances.get(userId);
+        return Money.ofPaise(netBalances[memberSlots.get(userId)]);
+    }
+    
+    public synchronized Money getTotalOwedInGroup(String userId) {
+        return Money.ofPaise(Math.max(0, -netBalances[memberSlots.get(userId)]));
+    }
+    
+    public synchronized Money getTotalOwingInGroup(String userId) {
+        return Money.ofPaise(Math.max(0, netBalances[memberSlots.get(userId)]));
     }
     
     // Add expense to this group
-    public boolean addExpense(String description, double amount, String paidByUserId,
+    public synchronized boolean addExpense(String description, double amount, String paidByUserId,
                    List<String> involvedUsers, SplitType splitType, 
                    List<Double> splitValues) {
         
@@ -372,11 +1569,22 @@ class Group {
         }
         
         // Generate splits using strategy pattern
+        Money total = Money.of(amount);
         List<Split> splits = SplitFactory.getSplitStrategy(splitType)
-                                .calculateSplit(amount, involvedUsers, splitValues);
+                                .calculateSplit(total, involvedUsers, splitValues);
+        
+        JournalRecord record = new JournalRecord(JournalRecordType.EXPENSE, groupId, paidByUserId);
+        record.description = description;
+        for (Split split : splits) {
+            if (!split.userId.equals(paidByUserId)) {
+                record.otherUserIds.add(split.userId);
+                record.amounts.add(split.amount.toPaise());
+            }
+        }
+        journal(record);
         
         // Create expense in group's own expense book
-        Expense expense = new Expense(description, amount, paidByUserId, splits, groupId);
+        Expense expense = new Expense(description, total, paidByUserId, splits, groupId);
         groupExpenses.put(expense.expenseId, expense);
         
         // Update group balances
@@ -416,7 +1624,86 @@ class Group {
         return addExpense(description, amount, paidByUserId, involvedUsers, splitType, new ArrayList<>());
     }
     
-    public boolean settlePayment(String fromUserId, String toUserId, double amount) {
+    // Adds many already split expenses at once (used by bulk import): membership is checked once
+    // per user in the batch, and balances get one update per (payer, debtor) pair.
+    // No console output or notifications here. Returns the expenses that were added.
+    public synchronized List<Expense> addExpenseBatch(List<Expense> batch) {
+        Set<String> checked = new HashSet<>();
+        Set<String> strangers = new HashSet<>();
+        for (Expense expense : batch) {
+            if (checked.add(expense.paidByUserId) && !isMember(expense.paidByUserId)) {
+                strangers.add(expense.paidByUserId);
+            }
+            for (Split split : expense.splits) {
+                if (checked.add(split.userId) && !isMember(split.userId)) {
+                    strangers.add(split.userId);
+                }
+            }
+        }
+        
+        List<Expense> accepted = new ArrayList<>();
+        Map<String, Map<String, Long>> deltas = new HashMap<>(); // payer -> {debtor -> paise}
+        for (Expense expense : batch) {
+            boolean allMembers = !strangers.contains(expense.paidByUserId);
+            for (Split split : expense.splits) {
+                allMembers &= !strangers.contains(split.userId);
+            }
+            if (!allMembers) {
+                continue;
+            }
+            
+            accepted.add(expense);
+            for (Split split : expense.splits) {
+                if (!split.userId.equals(expense.paidByUserId)) {
+                    deltas.computeIfAbsent(expense.paidByUserId, k -> new HashMap<>())
+                          .merge(split.userId, split.amount.toPaise(), Long::sum);
+                }
+            }
+        }
+        
+        // The whole batch is one journal record, so it is either on disk and applied below
+        // or, if the write fails, neither - never some of its expenses
+        if (!deltas.isEmpty()) {
+            JournalRecord record = new JournalRecord(JournalRecordType.EXPENSE_BATCH, groupId, "");
+            record.description = accepted.size() + " imported expenses";
+            for (Map.Entry<String, Map<String, Long>> payer : deltas.entrySet()) {
+                for (Map.Entry<String, Long> debtor : payer.getValue().entrySet()) {
+                    record.otherUserIds.add(payer.getKey());
+                    record.otherUserIds.add(debtor.getKey());
+                    record.amounts.add(debtor.getValue());
+                }
+            }
+            journal(record);
+        }
+        
+        for (Expense expense : accepted) {
+            groupExpenses.put(expense.expenseId, expense);
+        }
+        for (Map.Entry<String, Map<String, Long>> payer : deltas.entrySet()) {
+            for (Map.Entry<String, Long> debtor : payer.getValue().entrySet()) {
+                updateGroupBalance(payer.getKey(), debtor.getKey(), Money.ofPaise(debtor.getValue()));
+            }
+        }
+        return accepted;
+    }
+    
+    public synchronized List<String> getMemberIds() {
+        return new ArrayList<>(members.keySet());
+    }
+    
+    public synchronized void notifyMember(String userId, String message) {
+        User member = members.get(userId);
+        if (member == null) {
+            return;
+        }
+        if (outbox != null) {
+            outbox.publish(groupId, Collections.singletonList(member), message);
+        } else {
+            member.update(message);
+        }
+    }
+    
+    public synchronized boolean settlePayment(String fromUserId, String toUserId, double amount) {
         // Validate that both users are group members
         if (!isMember(fromUserId) || !isMember(toUserId)) {
             System.out.println("user is not a part of this group");
@@ -424,7 +1711,12 @@ class Group {
         }
         
         // Update group balances
-        updateGroupBalance(fromUserId, toUserId, amount);
+        Money money = Money.of(amount);
+        JournalRecord record = new JournalRecord(JournalRecordType.SETTLEMENT, groupId, fromUserId);
+        record.otherUserIds.add(toUserId);
+        record.amounts.add(money.toPaise());
+        journal(record);
+        updateGroupBalance(fromUserId, toUserId, money);
         
         // Get user names for display
         String fromName = getUserByuserId(fromUserId).name;
@@ -439,30 +1731,30 @@ class Group {
         return true;
     }
     
-    public void showGroupBalances() {
+    public synchronized void showGroupBalances() {
         System.out.println("\n=== Group Balances for " + name + " ===");
-        DecimalFormat df = new DecimalFormat("#.##");
         
-        for (Map.Entry<String, Map<String, Double>> pair : groupBalances.entrySet()) {
+        for (Map.Entry<String, Map<String, Money>> pair : groupBalances.entrySet()) {
             String memberId = pair.getKey();
             String memberName = getUserByuserId(memberId).name;
 
-            System.out.println(memberName + "'s balances in group:");
+            System.out.println(memberName + "'s balances in group (net Rs " 
+                + getNetBalance(memberId) + "):");
             
-            Map<String, Double> userBalances = pair.getValue();
+            Map<String, Money> userBalances = pair.getValue();
             if (userBalances.isEmpty()) {
                 System.out.println("  No outstanding balances");
             } 
             else {
-                for (Map.Entry<String, Double> userBalance : userBalances.entrySet()) {
+                for (Map.Entry<String, Money> userBalance : userBalances.entrySet()) {
                     String otherMemberUserId = userBalance.getKey();
                     String otherName = getUserByuserId(otherMemberUserId).name;
                     
-                    double balance = userBalance.getValue();
-                    if (balance > 0) {
-                        System.out.println("  " + otherName + " owes: Rs " + df.format(balance));
+                    Money balance = userBalance.getValue();
+                    if (balance.isPositive()) {
+                        System.out.println("  " + otherName + " owes: Rs " + balance);
                     } else {
-                        System.out.println("  Owes " + otherName + ": Rs " + df.format(Math.abs(balance)));
+                        System.out.println("  Owes " + otherName + ": Rs " + balance.abs());
                     }
                 }
             }
@@ -470,34 +1762,339 @@ class Group {
     }
 
     public void simplifyGroupDebts() {
-        Map<String, Map<String, Double>> simplifiedBalances = DebtSimplifier.simplifyDebts(groupBalances);
+        simplifyGroupDebts(SimplifierType.GREEDY);
+    }
+    
+    public synchronized void setJournal(ExpenseJournal journal) {
+        this.journal = journal;
+    }
+    
+    // Writes everything needed to recreate this group as it is now: name, members and balances.
+    // Called once when the group starts being journaled.
+    public synchronized void journalCurrentState() {
+        JournalRecord created = new JournalRecord(JournalRecordType.GROUP_CREATED, groupId, "");
+        created.description = name;
+        journal(created);
+        for (User member : members.values()) {
+            journal(memberAdded(member));
+        }
+        journal(balancesReset(groupBalances));
+    }
+    
+    private JournalRecord memberAdded(User user) {
+        JournalRecord record = new JournalRecord(JournalRecordType.MEMBER_ADDED, groupId, user.userId);
+        record.description = user.name;
+        record.otherUserIds.add(user.email);
+        return record;
+    }
+    
+    // Waits for the fsync while holding the group lock: other groups keep going and share the
+    // writer's group commit, only this group's next change waits. If the write fails nothing
+    // has been changed in memory yet, the caller gets the exception.
+    private void journal(JournalRecord record) {
+        if (journal != null) {
+            awaitDurable(journal.append(record));
+        }
+    }
+    
+    private static void awaitDurable(CompletableFuture<?> write) {
+        try {
+            write.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("journal write failed", e.getCause());
+        }
+    }
+    
+    private JournalRecord balancesReset(Map<String, Map<String, Money>> balances) {
+        JournalRecord record = new JournalRecord(JournalRecordType.BALANCES_RESET, groupId, "");
+        for (Map.Entry<String, Map<String, Money>> creditor : balances.entrySet()) {
+            for (Map.Entry<String, Money> debtor : creditor.getValue().entrySet()) {
+                if (debtor.getValue().isPositive()) {
+                    record.otherUserIds.add(creditor.getKey());
+                    record.otherUserIds.add(debtor.getKey());
+                    record.amounts.add(debtor.getValue().toPaise());
+                }
+            }
+        }
+        return record;
+    }
+    
+    // Replaces balances with the ones rebuilt from the journal
+    public synchronized void restoreBalances(GroupLedger ledger) {
+        Map<String, Map<String, Long>> before = positiveBalances();
+        for (Map.Entry<String, Map<String, Money>> memberBalance : groupBalances.entrySet()) {
+            memberBalance.getValue().clear();
+        }
+        Arrays.fill(netBalances, 0);
+        for (Map.Entry<String, Map<String, Long>> creditor : ledger.balances.entrySet()) {
+            if (!isMember(creditor.getKey())) {
+                continue;
+            }
+            for (Map.Entry<String, Long> debtor : creditor.getValue().entrySet()) {
+                if (isMember(debtor.getKey())) {
+                    groupBalances.get(creditor.getKey()).put(debtor.getKey(), Money.ofPaise(debtor.getValue()));
+                    netBalances[memberSlots.get(creditor.getKey())] += debtor.getValue();
+                }
+            }
+        }
+        publishChanges(before);
+    }
+    
+    public synchronized void setBalanceListener(BalanceListener listener) {
+        this.balanceListener = listener;
+    }
+    
+    // creditor -> {debtor -> paise}, only the positive side of every balance
+    private Map<String, Map<String, Long>> positiveBalances() {
+        Map<String, Map<String, Long>> positive = new HashMap<>();
+        for (Map.Entry<String, Map<String, Money>> creditor : groupBalances.entrySet()) {
+            for (Map.Entry<String, Money> debtor : creditor.getValue().entrySet()) {
+                if (debtor.getValue().isPositive()) {
+                    positive.computeIfAbsent(creditor.getKey(), k -> new HashMap<>())
+                            .put(debtor.getKey(), debtor.getValue().toPaise());
+                }
+            }
+        }
+        return positive;
+    }
+    
+    // After balances were replaced wholesale, tell the listener what changed pair by pair
+    private void publishChanges(Map<String, Map<String, Long>> before) {
+        if (balanceListener == null) {
+            return;
+        }
+        Map<String, Map<String, Long>> after = positiveBalances();
+        for (Map.Entry<String, Map<String, Long>> creditor : before.entrySet()) {
+            for (Map.Entry<String, Long> debtor : creditor.getValue().entrySet()) {
+                balanceListener.onBalanceChange(groupId, creditor.getKey(), debtor.getKey(), -debtor.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, Long>> creditor : after.entrySet()) {
+            for (Map.Entry<String, Long> debtor : creditor.getValue().entrySet()) {
+                balanceListener.onBalanceChange(groupId, creditor.getKey(), debtor.getKey(), debtor.getValue());
+            }
+        }
+    }
+    
+    public synchronized SimplificationResult simplifyGroupDebts(SimplifierType type) {
+        long start = System.nanoTime();
+        Map<String, Map<String, Money>> simplifiedBalances = type == SimplifierType.OPTIMAL
+            ? OptimalDebtSimplifier.simplifyDebts(memberSlots, netBalances)
+            : DebtSimplifier.simplifyDebts(memberSlots, netBalances);
+        long solveNanos = System.nanoTime() - start;
+        
+        // Every debt shows up twice (once per side), the reset keeps the positive side only
+        JournalRecord record = balancesReset(simplifiedBalances);
+        int transactions = record.amounts.size();
+        journal(record);
+        
+        Map<String, Map<String, Long>> before = positiveBalances();
         groupBalances = simplifiedBalances;
+        publishChanges(before);
+        SimplificationResult result = new SimplificationResult(groupId, type, transactions, solveNanos);
+    
+        System.out.println("\nDebts have been simplified for group: " + name + " -> " + result);
+        return result;
+    }
+}
+    
+// -------------------- Bulk Import --------------------
+
+class ImportResult {
+    public int imported;
+    public int rejected;
+    public long nanos;
+    
+    public double expensesPerSecond() {
+        return nanos == 0 ? 0 : imported * 1_000_000_000.0 / nanos;
+    }
     
-        System.out.println("\nDebts have been simplified for group: " + name);
+    @Override
+    public String toString() {
+        return "Imported " + imported + " expenses (" + rejected + " rejected) in " 
+            + (nanos / 1_000_000) + " ms -> " + String.format("%.0f", expensesPerSecond()) + " expenses/sec";
     }
 }
+
+// Streams expenses from CSV into a group in batches, without the per-expense console output and
+// notifications of Group.addExpense. Each member gets one summary notification at the end.
+//
+// description,amount,paidByUserId,EQUAL|EXACT|PERCENTAGE,userId;userId;...[,value;value;...]
+class ExpenseImporter {
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    
+    public static ImportResult importCsv(Group group, Reader source) throws IOException {
+        return importCsv(group, source, DEFAULT_BATCH_SIZE);
+    }
+    
+    public static ImportResult importCsv(Group group, Reader source, int batchSize) throws IOException {
+        long start = System.nanoTime();
+        ImportResult result = new ImportResult();
+        Map<String, Long> netChanges = new HashMap<>(); // userId -> paise
+        long importedTotal = 0;
+        
+        BufferedReader reader = new BufferedReader(source);
+        List<Expense> batch = new ArrayList<>(batchSize);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isBlank() || line.startsWith("description,")) {
+                continue;
+            }
+            try {
+                batch.add(parse(group.groupId, line));
+            } catch (RuntimeException e) {
+                result.rejected++;
+                System.out.println("Skipping line " + lineNumber + ": " + e.getMessage());
+            }
+            if (batch.size() == batchSize) {
+                importedTotal += applyBatch(group, batch, result, netChanges);
+            }
+        }
+        importedTotal += applyBatch(group, batch, result, netChanges);
+        result.nanos = System.nanoTime() - start;
+        
+        for (String userId : group.getMemberIds()) {
+            Money change = Money.ofPaise(netChanges.getOrDefault(userId, 0L));
+            group.notifyMember(userId, "Imported " + result.imported + " expenses (Rs " 
+                + Money.ofPaise(importedTotal) + ") into " + group.name + ", your balance changed by Rs " + change);
+        }
+        return result;
+    }
+    
+    // Splits are computed here, outside the group lock, the group only applies them
+    private static Expense parse(String groupId, String line) {
+        String[] fields = line.split(",", -1);
+        if (fields.length < 5) {
+            throw new RuntimeException("expected at least 5 fields");
+        }
+        Money total = Money.of(Double.parseDouble(fields[1].trim()));
+        String paidBy = fields[2].trim();
+        SplitType type = SplitType.valueOf(fields[3].trim());
+        List<String> userIds = Arrays.asList(fields[4].trim().split(";"));
+        List<Double> values = new ArrayList<>();
+        if (fields.length > 5 && !fields[5].isBlank()) {
+            for (String value : fields[5].split(";")) {
+                values.add(Double.parseDouble(value.trim()));
+            }
+        }
+        List<Split> splits = SplitFactory.getSplitStrategy(type).calculateSplit(total, userIds, values);
+        return new Expense(fields[0].trim(), total, paidBy, splits, groupId);
+    }
     
+    private static long applyBatch(Group group, List<Expense> batch, ImportResult result, Map<String, Long> netChanges) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        List<Expense> accepted = group.addExpenseBatch(batch);
+        result.imported += accepted.size();
+        result.rejected += batch.size() - accepted.size();
+        
+        long total = 0;
+        for (Expense expense : accepted) {
+            total += expense.totalAmount.toPaise();
+            for (Split split : expense.splits) {
+                if (!split.userId.equals(expense.paidByUserId)) {
+                    netChanges.merge(expense.paidByUserId, split.amount.toPaise(), Long::sum);
+                    netChanges.merge(split.userId, -split.amount.toPaise(), Long::sum);
+                }
+            }
+        }
+        batch.clear();
+        return total;
+    }
+}
+
 // Main ExpenseManager class (Singleton - Facade)
 class Splitwise {
     private Map<String, User> users;
     private Map<String, Group> groups;
     private Map<String, Expense> expenses;
+    private ExpenseJournal journal;
+    private UserBalanceIndex balanceIndex;
+    private NotificationOutbox outbox;
 
     private static Splitwise instance;
     
     private Splitwise() {
-        users = new HashMap<>();
-        groups = new HashMap<>();
-        expenses = new HashMap<>();
+        users = new ConcurrentHashMap<>();
+        groups = new ConcurrentHashMap<>();
+        expenses = new ConcurrentHashMap<>();
+        balanceIndex = new UserBalanceIndex();
+        outbox = new NotificationOutbox(10_000, 256);
     }
     
-    public static Splitwise getInstance() {
+    public static synchronized Splitwise getInstance() {
         if(instance == null) {
             instance = new Splitwise();
         }
         return instance;
     }
 
+    // Journal every group change from now on, groups that already exist are written out first
+    public void enableJournal(Path dir, long snapshotPeriodMillis) throws IOException {
+        journal = new ExpenseJournal(dir);
+        journal.startPeriodicSnapshots(snapshotPeriodMillis);
+        for (Group group : groups.values()) {
+            group.setJournal(journal);
+            group.journalCurrentState();
+        }
+    }
+    
+    public ExpenseJournal getJournal() {
+        return journal;
+    }
+    
+    // Notifications are delivered in the background, wait for the ones sent so far
+    public void flushNotifications() {
+        outbox.flush();
+    }
+    
+    public void shutdown() throws IOException {
+        outbox.close();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+    
+    // After a restart: replay the journal, recreating groups (and their members) that are not
+    // in memory and putting back every group's balances
+    public void rebuildGroupBalancesFromJournal() throws IOException {
+        if (journal == null) {
+            System.out.println("Journal is not enabled!");
+            return;
+        }
+        journal.flush();
+        Map<String, GroupLedger> ledgers = journal.rebuild();
+        int recreated = 0;
+        for (GroupLedger ledger : ledgers.values()) {
+            Group group = getGroup(ledger.groupId);
+            if (group == null) {
+                group = recreateGroup(ledger);
+                recreated++;
+            }
+            group.restoreBalances(ledger);
+        }
+        System.out.println("Rebuilt balances of " + ledgers.size() + " groups from the journal ("
+            + recreated + " recreated)");
+    }
+    
+    // The group's history is already in the journal, so it is attached only after its members are back
+    private Group recreateGroup(GroupLedger ledger) {
+        Group group = new Group(ledger.groupId, ledger.name);
+        for (String memberId : ledger.members) {
+            User member = users.computeIfAbsent(memberId, id -> 
+                new User(id, ledger.memberNames.getOrDefault(id, id), ledger.memberEmails.getOrDefault(id, "")));
+            group.addMember(member);
+        }
+        group.setJournal(journal);
+        group.setBalanceListener(balanceIndex);
+        group.setOutbox(outbox);
+        groups.put(group.groupId, group);
+        return group;
+    }
+
     // User management
     public User createUser(String name, String email) {
         User user = new User(name, email);
@@ -513,6 +2110,12 @@ class Splitwise {
     // Group management
     public Group createGroup(String name) {
         Group group = new Group(name);
+        if (journal != null) {
+            group.setJournal(journal);
+            group.journalCurrentState();
+        }
+        group.setBalanceListener(balanceIndex);
+        group.setOutbox(outbox);
         groups.put(group.groupId, group);
         System.out.println("Group created: " + name + " (ID: " + group.groupId + ")");
         return group;
@@ -574,6 +2177,19 @@ class Splitwise {
         addExpenseToGroup(groupId, description, amount, paidByUserId, involvedUsers, splitType, new ArrayList<>());
     }
     
+    // Bulk import - delegate to importer
+    public ImportResult importExpensesToGroup(String groupId, Reader source) throws IOException {
+        Group group = getGroup(groupId);
+        if (group == null) {
+            System.out.println("Group not found!");
+            return null;
+        }
+        
+        ImportResult result = ExpenseImporter.importCsv(group, source);
+        System.out.println(result);
+        return result;
+    }
+    
     // Settlement - delegate to group
     public void settlePaymentInGroup(String groupId, String fromUserId, 
                               String toUserId, double amount) {
@@ -593,8 +2209,10 @@ class Splitwise {
         User toUser = getUser(toUserId);
         
         if (fromUser != null && toUser != null) {
-            fromUser.updateBalance(toUserId, amount);
-            toUser.updateBalance(fromUserId, -amount);
+            Money money = Money.of(amount);
+            fromUser.updateBalance(toUserId, money);
+            toUser.updateBalance(fromUserId, money.negate());
+            balanceIndex.onBalanceChange("", fromUserId, toUserId, money.toPaise());
             
             System.out.println(fromUser.name + " settled Rs" + amount + " with " + toUser.name);
         }
@@ -605,16 +2223,18 @@ class Splitwise {
                             List<Double> splitValues) {
 
         SplitStrategy strategy = SplitFactory.getSplitStrategy(splitType);
-        List<Split> splits = strategy.calculateSplit(amount, Arrays.asList(paidByUserId, toUserId), splitValues);
+        Money total = Money.of(amount);
+        List<Split> splits = strategy.calculateSplit(total, Arrays.asList(paidByUserId, toUserId), splitValues);
 
-        Expense expense = new Expense(description, amount, paidByUserId, splits);
+        Expense expense = new Expense(description, total, paidByUserId, splits);
         expenses.put(expense.expenseId, expense);
         
         User paidByUser = getUser(paidByUserId);
         User toUser = getUser(toUserId);
 
-        paidByUser.updateBalance(toUserId, amount);
-        toUser.updateBalance(paidByUserId, -amount);
+        paidByUser.updateBalance(toUserId, total);
+        toUser.updateBalance(paidByUserId, total.negate());
+        balanceIndex.onBalanceChange("", paidByUserId, toUserId, total.toPaise());
         
         System.out.println("Individual expense added: " + description + " (Rs " + amount 
                 + ") paid by " + paidByUser.name +" for " + toUser.name);
@@ -630,24 +2250,33 @@ class Splitwise {
         User user = getUser(userId);
         if (user == null) return;
         
-        DecimalFormat df = new DecimalFormat("#.##");
         System.out.println("\n=========== Balance for " + user.name +" ===================="); 
-        System.out.println("Total you owe: Rs " + df.format(user.getTotalOwed()));
-        System.out.println("Total others owe you: Rs " + df.format(user.getTotalOwing()));
+        System.out.println("Total you owe: Rs " + balanceIndex.getTotalOwed(userId));
+        System.out.println("Total others owe you: Rs " + balanceIndex.getTotalOwing(userId));
         
+        // Across all groups and individual expenses, largest first
         System.out.println("Detailed balances:");
-        for (Map.Entry<String, Double> balance : user.balances.entrySet()) {
+        for (Map.Entry<String, Money> balance : balanceIndex.getTopCounterparties(userId, Integer.MAX_VALUE)) {
             User otherUser = getUser(balance.getKey());
             if (otherUser != null) {
-                if (balance.getValue() > 0) {
+                if (balance.getValue().isPositive()) {
                     System.out.println("  " + otherUser.name + " owes you: Rs" + balance.getValue());
                 } else {
-                    System.out.println("  You owe " + otherUser.name + ": Rs" + Math.abs(balance.getValue()));
+                    System.out.println("  You owe " + otherUser.name + ": Rs" + balance.getValue().abs());
                 }
             }
         }
     }
     
+    // Net position across all groups and individual expenses (positive = others owe this user)
+    public Money getGlobalNetBalance(String userId) {
+        return balanceIndex.getNetBalance(userId);
+    }
+    
+    public List<Map.Entry<String, Money>> getTopCounterparties(String userId, int k) {
+        return balanceIndex.getTopCounterparties(userId, k);
+    }
+    
     public void showGroupBalances(String groupId) {
         Group group = getGroup(groupId);
         if (group == null) return;
@@ -662,12 +2291,34 @@ class Splitwise {
         // Use group's balance data for debt simplification
         group.simplifyGroupDebts();
     }
+    
+    public SimplificationResult simplifyGroupDebts(String groupId, SimplifierType type) {
+        Group group = getGroup(groupId);
+        if (group == null) return null;
+        
+        return group.simplifyGroupDebts(type);
+    }
+    
+    // Simplifies every group at once, groups are independent so they run in parallel
+    public List<SimplificationResult> simplifyAllGroupDebts(SimplifierType type) {
+        List<ForkJoinTask<SimplificationResult>> tasks = new ArrayList<>();
+        for (Group group : groups.values()) {
+            tasks.add(OptimalDebtSimplifier.getPool().submit(() -> group.simplifyGroupDebts(type)));
+        }
+        
+        List<SimplificationResult> results = new ArrayList<>();
+        for (ForkJoinTask<SimplificationResult> task : tasks) {
+            results.add(task.join());
+        }
+        return results;
+    }
 }
 
 public class SplitwiseApp {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         
         Splitwise manager = Splitwise.getInstance();
+        manager.enableJournal(Files.createTempDirectory("splitwise-journal"), 60_000);
         
         System.out.println("\n=========== Creating Users ====================");
         User user1 = manager.createUser("Aditya", "aditya@gmail.com");
@@ -690,6 +2341,7 @@ public class SplitwiseApp {
         List<Double> dinnerAmounts = Arrays.asList(200.0, 300.0, 200.0);
         manager.addExpenseToGroup(hostelGroup.groupId, "Dinner", 700.0, user3.userId, dinnerMembers, 
                                  SplitType.EXACT, dinnerAmounts);
+        manager.flushNotifications();
 
         System.out.println("\n=========== printing Group-Specific Balances ===================="); 
         manager.showGroupBalances(hostelGroup.groupId);
@@ -714,11 +2366,50 @@ public class SplitwiseApp {
 
         System.out.println("\n======== Making Settlement to Clear Rohit's Debt =========="); 
         manager.settlePaymentInGroup(hostelGroup.groupId, user2.userId, user3.userId, 200.0);
+        manager.flushNotifications();
         
         System.out.println("\n======== Attempting to Remove Rohit Again ==========");
         manager.removeUserFromGroup(user2.userId, hostelGroup.groupId);
         
         System.out.println("\n=========== Updated Group Balances ===================="); 
         manager.showGroupBalances(hostelGroup.groupId);
+
+        System.out.println("\n=========== Greedy vs Optimal Debt Simplification ====================");
+        User user5 = manager.createUser("Neha", "neha@gmail.com");
+        User user6 = manager.createUser("Priya", "priya@gmail.com");
+        Group tripGroup = manager.createGroup("Goa Trip");
+        for (User member : Arrays.asList(user1, user2, user3, user4, user5, user6)) {
+            manager.addUserToGroup(member.userId, tripGroup.groupId);
+        }
+        manager.addExpenseToGroup(tripGroup.groupId, "Cab", 500.0, user1.userId, 
+                                 Arrays.asList(user3.userId, user5.userId), SplitType.EXACT, Arrays.asList(300.0, 200.0));
+        manager.addExpenseToGroup(tripGroup.groupId, "Hotel", 500.0, user2.userId, 
+                                 Arrays.asList(user4.userId, user6.userId), SplitType.EXACT, Arrays.asList(300.0, 200.0));
+        manager.flushNotifications();
+        manager.simplifyGroupDebts(tripGroup.groupId, SimplifierType.GREEDY);
+        manager.simplifyAllGroupDebts(SimplifierType.OPTIMAL);
+        manager.showGroupBalances(tripGroup.groupId);
+
+        System.out.println("\n=========== Bulk Importing Trip Expenses ====================");
+        StringBuilder csv = new StringBuilder("description,amount,paidByUserId,splitType,users,values\n");
+        String tripMembers = String.join(";", user1.userId, user2.userId, user4.userId, user5.userId, user6.userId);
+        for (int i = 1; i <= 5000; i++) {
+            csv.append("Snacks ").append(i).append(",").append(100 + i % 50).append(",")
+               .append(i % 2 == 0 ? user1.userId : user2.userId).append(",EQUAL,").append(tripMembers).append("\n");
+        }
+        manager.importExpensesToGroup(tripGroup.groupId, new StringReader(csv.toString()));
+        manager.flushNotifications();
+        manager.simplifyGroupDebts(tripGroup.groupId, SimplifierType.OPTIMAL);
+        manager.showGroupBalances(tripGroup.groupId);
+        manager.showUserBalance(user1.userId);
+        System.out.println("Aditya's net position across everything: Rs " + manager.getGlobalNetBalance(user1.userId));
+
+        System.out.println("\n=========== Rebuilding Balances from Journal ====================");
+        manager.getJournal().flush();
+        System.out.println("Snapshot written up to journal offset " + manager.getJournal().writeSnapshot());
+        manager.settlePaymentInGroup(tripGroup.groupId, user5.userId, user1.userId, 200.0);
+        manager.rebuildGroupBalancesFromJournal();
+        manager.showGroupBalances(tripGroup.groupId);
+        manager.shutdown();
     }
 }
\ No newline at end of file